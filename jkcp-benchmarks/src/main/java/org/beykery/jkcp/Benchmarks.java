@@ -0,0 +1,31 @@
+/**
+ * 基准测试入口
+ */
+package org.beykery.jkcp;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.openjdk.jmh.Main;
+
+/**
+ * the jmh main with the gc profiler on, so that every benchmark also reports
+ * its allocation rate (gc.alloc.rate.norm is bytes per operation). takes the
+ * usual jmh options, e.g. java -jar benchmarks.jar WindowBenchmark -p wnd=4096
+ *
+ * @author beykery
+ */
+public class Benchmarks
+{
+
+  public static void main(String[] args) throws Exception
+  {
+    List<String> list = new ArrayList<>(Arrays.asList(args));
+    if (!list.contains("-prof"))
+    {
+      list.add("-prof");
+      list.add("gc");
+    }
+    Main.main(list.toArray(new String[list.size()]));
+  }
+}
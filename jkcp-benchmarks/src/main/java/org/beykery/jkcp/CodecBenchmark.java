@@ -0,0 +1,116 @@
+/**
+ * 编解码基准
+ */
+package org.beykery.jkcp;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * segment headers: decoding in Kcp.validate and Kcp.input, encoding in flush.
+ * a datagram holds segments headers of 24 bytes without payload
+ *
+ * @author beykery
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark
+{
+
+  @Param(
+  {
+    "1", "16", "56"
+  })
+  int segments;//per datagram, 56 fill the default mtu
+  private ByteBuf acks;//acks of segments never sent, input only decodes them
+  private ByteBuf pushes;//segments received already, input acks them again
+  private Kcp kcp;
+  private int current;
+
+  @Setup
+  public void setup()
+  {
+    acks = Unpooled.buffer(segments * Kcp.IKCP_OVERHEAD);
+    pushes = Unpooled.buffer(segments * Kcp.IKCP_OVERHEAD);
+    for (int i = 0; i < segments; i++)
+    {
+      Link.header(acks, 1, Kcp.IKCP_CMD_ACK, 1000000 + i, 0, 0);
+      Link.header(pushes, 1, Kcp.IKCP_CMD_PUSH, i, 0, 0);
+    }
+    kcp = new Kcp(1, new Output()
+    {
+      @Override
+      public void out(ByteBuf msg, Kcp kcp, Object user)
+      {
+        msg.release();
+      }
+    }, "bench");
+    kcp.noDelay(1, Link.INTERVAL, 0, 1);
+    kcp.wndSize(segments * 2, segments * 2);
+    kcp.update(current);
+    kcp.input(pushes);//rcv_nxt moves past them
+    pushes.readerIndex(0);
+    Link.drain(kcp);
+  }
+
+  @TearDown
+  public void tearDown()
+  {
+    kcp.release();
+  }
+
+  /**
+   * header walk of the io thread
+   *
+   * @return
+   */
+  @Benchmark
+  public boolean validate()
+  {
+    return Kcp.validate(acks);
+  }
+
+  /**
+   * header decoding of input
+   *
+   * @return
+   */
+  @Benchmark
+  public int input()
+  {
+    acks.readerIndex(0);
+    return kcp.input(acks);
+  }
+
+  /**
+   * input of pushes and flush of their acks, mostly Segment.encode
+   *
+   * @return
+   */
+  @Benchmark
+  public int encodeAcks()
+  {
+    pushes.readerIndex(0);
+    kcp.input(pushes);
+    current += Link.INTERVAL;
+    kcp.update(current);
+    return current;
+  }
+}
@@ -0,0 +1,76 @@
+/**
+ * 发送基准
+ */
+package org.beykery.jkcp;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * one message through send (fragmentation), flush of the sender, input and
+ * receive of the receiver and the acks back, per message size and copy mode
+ *
+ * @author beykery
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FlushBenchmark
+{
+
+  @Param(
+  {
+    "16", "1024", "65536"
+  })
+  int size;
+  @Param(
+  {
+    "false", "true"
+  })
+  boolean zeroCopy;
+  private Link link;
+  private ByteBuf msg;
+
+  @Setup
+  public void setup()
+  {
+    link = new Link(256, zeroCopy);
+    msg = Unpooled.buffer(size);
+    msg.writeZero(size);
+  }
+
+  @TearDown
+  public void tearDown()
+  {
+    link.release();
+    msg.release();
+  }
+
+  @Benchmark
+  public int sendFlush()
+  {
+    msg.readerIndex(0);
+    link.a.send(msg);
+    link.tick();
+    Link.deliver(link.toB, link.b);
+    int n = Link.drain(link.b);
+    Link.deliver(link.toA, link.a);
+    return n;
+  }
+}
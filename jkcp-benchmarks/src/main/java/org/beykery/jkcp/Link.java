@@ -0,0 +1,167 @@
+/**
+ * 内存中的一对kcp
+ */
+package org.beykery.jkcp;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import java.util.ArrayDeque;
+
+/**
+ * two kcp connected in memory: the datagrams of a wait in toB until delivered
+ * to b and the other way round. nodelay, interval 10 and no congestion window,
+ * so that the benchmarks measure the protocol engine and not the timers. time
+ * is virtual and moves one interval per tick
+ *
+ * @author beykery
+ */
+class Link
+{
+
+  static final int INTERVAL = 10;
+  final Kcp a;
+  final Kcp b;
+  final ArrayDeque<ByteBuf> toA = new ArrayDeque<>();
+  final ArrayDeque<ByteBuf> toB = new ArrayDeque<>();
+  int current;
+
+  /**
+   * link
+   *
+   * @param wnd send and receive window of both
+   * @param zeroCopy
+   */
+  Link(int wnd, boolean zeroCopy)
+  {
+    this.a = new Kcp(1, capture(toB), "a");
+    this.b = new Kcp(1, capture(toA), "b");
+    for (Kcp k : new Kcp[]
+    {
+      a, b
+    })
+    {
+      k.noDelay(1, INTERVAL, 0, 1);
+      k.wndSize(wnd, wnd);
+      k.setZeroCopy(zeroCopy);
+      k.update(current);
+    }
+  }
+
+  /**
+   * output into a queue
+   */
+  private static Output capture(final ArrayDeque<ByteBuf> queue)
+  {
+    return new Output()
+    {
+      @Override
+      public void out(ByteBuf msg, Kcp kcp, Object user)
+      {
+        queue.add(msg);
+      }
+    };
+  }
+
+  /**
+   * one interval later, both flush
+   */
+  void tick()
+  {
+    current += INTERVAL;
+    a.update(current);
+    b.update(current);
+  }
+
+  /**
+   * input the queued datagrams into k
+   *
+   * @param queue
+   * @param k
+   * @return datagrams
+   */
+  static int deliver(ArrayDeque<ByteBuf> queue, Kcp k)
+  {
+    int n = 0;
+    ByteBuf bb;
+    while ((bb = queue.poll()) != null)
+    {
+      k.input(bb);
+      bb.release();
+      n++;
+    }
+    return n;
+  }
+
+  /**
+   * receive and drop every message of k
+   *
+   * @param k
+   * @return bytes
+   */
+  static int drain(Kcp k)
+  {
+    int bytes = 0;
+    if (k.isZeroCopy())
+    {
+      ByteBuf bb;
+      while ((bb = k.receive()) != null)
+      {
+        bytes += bb.readableBytes();
+        bb.release();
+      }
+      return bytes;
+    }
+    int len;
+    while ((len = k.peekSize()) > 0)
+    {
+      ByteBuf bb = PooledByteBufAllocator.DEFAULT.buffer(len);
+      bytes += k.receive(bb);
+      bb.release();
+    }
+    return bytes;
+  }
+
+  /**
+   * write one segment header, see Segment.encode
+   *
+   * @param bb
+   * @param conv
+   * @param cmd
+   * @param sn
+   * @param una
+   * @param len payload bytes following the header
+   */
+  static void header(ByteBuf bb, int conv, int cmd, int sn, int una, int len)
+  {
+    bb.writeInt(conv);
+    bb.writeByte(cmd);
+    bb.writeByte(0);
+    bb.writeShort(Kcp.IKCP_WND_RCV);
+    bb.writeInt(0);
+    bb.writeInt(sn);
+    bb.writeInt(una);
+    bb.writeInt(len);
+  }
+
+  /**
+   * drop the queued datagrams
+   *
+   * @param queue
+   */
+  static void discard(ArrayDeque<ByteBuf> queue)
+  {
+    ByteBuf bb;
+    while ((bb = queue.poll()) != null)
+    {
+      bb.release();
+    }
+  }
+
+  void release()
+  {
+    discard(toA);
+    discard(toB);
+    a.release();
+    b.release();
+  }
+}
@@ -0,0 +1,180 @@
+/**
+ * 窗口基准
+ */
+package org.beykery.jkcp;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * a full window of small segments: parse_data of the receiver, parse_ack of
+ * the sender and check with the window in flight. parse_data and parse_ack
+ * prepare the window before every invocation, so the results are per window,
+ * not per segment
+ *
+ * @author beykery
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WindowBenchmark
+{
+
+  static final int PAYLOAD = 16;
+
+  /**
+   * a link with wnd segments sent by a
+   */
+  @State(Scope.Thread)
+  public static class Window
+  {
+
+    @Param(
+    {
+      "32", "256", "4096"
+    })
+    int wnd;
+    Link link;
+    ByteBuf msg;
+    final ArrayDeque<ByteBuf> datagrams = new ArrayDeque<>();
+
+    @Setup(Level.Trial)
+    public void setup()
+    {
+      link = new Link(wnd, false);
+      msg = Unpooled.buffer(PAYLOAD);
+      msg.writeZero(PAYLOAD);
+      this.filled();
+    }
+
+    /**
+     * after setup, jmh does not order the setups of a state and its subclass
+     */
+    void filled()
+    {
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+      Link.discard(datagrams);
+      link.release();
+      msg.release();
+    }
+
+    /**
+     * a sends a window, its datagrams wait in toB
+     */
+    void send()
+    {
+      for (int i = 0; i < wnd; i++)
+      {
+        msg.readerIndex(0);
+        link.a.send(msg);
+      }
+      link.tick();
+    }
+  }
+
+  /**
+   * the datagrams of a window for b
+   */
+  @State(Scope.Thread)
+  public static class Data extends Window
+  {
+
+    @Setup(Level.Invocation)
+    public void prepare()
+    {
+      this.send();
+      datagrams.addAll(link.toB);
+      link.toB.clear();
+    }
+
+    @TearDown(Level.Invocation)
+    public void finish()
+    {
+      Link.drain(link.b);
+      link.tick();//acks
+      Link.deliver(link.toA, link.a);
+      Link.discard(link.toB);
+    }
+  }
+
+  /**
+   * the acks of a window for a
+   */
+  @State(Scope.Thread)
+  public static class Ack extends Window
+  {
+
+    @Setup(Level.Invocation)
+    public void prepare()
+    {
+      this.send();
+      Link.deliver(link.toB, link.b);
+      Link.drain(link.b);
+      link.tick();
+      datagrams.addAll(link.toA);
+      link.toA.clear();
+      Link.discard(link.toB);
+    }
+  }
+
+  /**
+   * a window in flight, check does not change it
+   */
+  @State(Scope.Thread)
+  public static class Flight extends Window
+  {
+
+    @Override
+    void filled()
+    {
+      //a round trip first, a learns the window of b
+      this.send();
+      Link.deliver(link.toB, link.b);
+      Link.drain(link.b);
+      link.tick();
+      Link.deliver(link.toA, link.a);
+      Link.discard(link.toB);
+      this.send();
+      Link.discard(link.toB);
+    }
+  }
+
+  @Benchmark
+  public int parseData(Data s)
+  {
+    return Link.deliver(s.datagrams, s.link.b);
+  }
+
+  @Benchmark
+  public int parseAck(Ack s)
+  {
+    return Link.deliver(s.datagrams, s.link.a);
+  }
+
+  @Benchmark
+  public int check(Flight s)
+  {
+    return s.link.a.check(s.link.current + 1);
+  }
+}
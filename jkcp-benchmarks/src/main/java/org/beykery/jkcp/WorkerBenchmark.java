@@ -0,0 +1,141 @@
+/**
+ * worker基准
+ */
+package org.beykery.jkcp;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import java.net.InetSocketAddress;
+import io.netty.channel.socket.DatagramPacket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * {@link KcpThread#round(List)} over many sessions, without starting the
+ * thread and without sockets. each session keeps an unacknowledged message in
+ * flight, so it is due every interval; a round moves the virtual clock of the
+ * worker by the interval and queues BATCH datagrams (one data segment each,
+ * for sessions taken in turn), the worker then dispatches them through its
+ * conv map, expires its timer wheel and updates and reschedules every ready
+ * session. output and received messages are dropped
+ *
+ * @author beykery
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx3g")
+public class WorkerBenchmark
+{
+
+  static final int BATCH = 256;
+  static final int PAYLOAD = 64;
+  static final int INTERVAL = 10;
+  @Param(
+  {
+    "1000", "10000", "100000"
+  })
+  int sessions;
+  private KcpThread worker;
+  private KcpOnUdp[] list;
+  private int[] sn;//next sn of each session
+  private int next;//next session to get a datagram
+  private InetSocketAddress addr;//of the peer
+  private InetSocketAddress local;
+  private Clock.Virtual source;
+  private final List<DatagramPacket> batch = new ArrayList<>();
+
+  @Setup
+  public void setup()
+  {
+    Output out = new Output()
+    {
+      @Override
+      public void out(ByteBuf msg, Kcp kcp, Object user)
+      {
+        msg.release();
+      }
+    };
+    KcpListerner listerner = new KcpListerner()
+    {
+      @Override
+      public void handleReceive(ByteBuf bb, KcpOnUdp kcp)
+      {
+        bb.release();
+      }
+
+      @Override
+      public void handleException(Throwable ex)
+      {
+      }
+
+      @Override
+      public void handleClose(KcpOnUdp kcp)
+      {
+      }
+    };
+    addr = new InetSocketAddress("127.0.0.1", 2222);
+    local = new InetSocketAddress("127.0.0.1", 2223);
+    source = new Clock.Virtual(0);
+    worker = new KcpThread(out, listerner, source);
+    list = new KcpOnUdp[sessions];
+    sn = new int[sessions];
+    for (int i = 0; i < sessions; i++)
+    {
+      KcpOnUdp ku = new KcpOnUdp(out, addr, listerner, i + 1);
+      ku.noDelay(1, INTERVAL, 2, 1);
+      ByteBuf msg = PooledByteBufAllocator.DEFAULT.buffer(PAYLOAD);
+      ku.send(msg.writeZero(PAYLOAD));//never acknowledged
+      worker.register(ku);
+      list[i] = ku;
+    }
+    worker.round(batch);
+  }
+
+  @TearDown
+  public void tearDown()
+  {
+    for (KcpOnUdp ku : list)
+    {
+      ku.release();
+    }
+  }
+
+  @Benchmark
+  public int tick()
+  {
+    source.advance(INTERVAL);
+    for (int i = 0; i < BATCH; i++)
+    {
+      int s = next;
+      next = next + 1 == sessions ? 0 : next + 1;
+      ByteBuf dp = PooledByteBufAllocator.DEFAULT.buffer(Kcp.IKCP_OVERHEAD + PAYLOAD);
+      Link.header(dp, s + 1, Kcp.IKCP_CMD_PUSH, sn[s]++, 0, PAYLOAD);
+      dp.writeZero(PAYLOAD);
+      worker.input(new DatagramPacket(dp, local, addr));
+    }
+    worker.round(batch);
+    int n = batch.size();
+    for (DatagramPacket dp : batch)
+    {
+      dp.release();
+    }
+    batch.clear();
+    return n;
+  }
+}
@@ -0,0 +1,22 @@
+/**
+ * worker线程的cpu亲和
+ */
+package org.beykery.jkcp;
+
+/**
+ * cpu affinity hint for the worker threads. the jdk cannot pin a thread to a
+ * cpu, implement this with a native library (eg. OpenHFT
+ * Java-Thread-Affinity) or leave it unset
+ *
+ * @author beykery
+ */
+public interface Affinity
+{
+
+  /**
+   * called on the worker thread before it handles anything
+   *
+   * @param worker index of the worker in its server
+   */
+  void bind(int worker);
+}
@@ -0,0 +1,156 @@
+/**
+ * 时钟
+ */
+package org.beykery.jkcp;
+
+/**
+ * time source of the sessions. a worker gives its sessions a {@link Cached}
+ * clock read once per round, so that a round over many sessions does not read
+ * the system time for each. {@link Virtual} is a clock the caller moves,
+ * for simulations driving sessions without threads faster than real time
+ *
+ * @author beykery
+ */
+public interface Clock
+{
+
+  /**
+   * System.currentTimeMillis
+   */
+  Clock SYSTEM = new Clock()
+  {
+    @Override
+    public long millis()
+    {
+      return System.currentTimeMillis();
+    }
+
+    @Override
+    public long micros()
+    {
+      return System.nanoTime() / 1000;
+    }
+  };
+
+  /**
+   * current time, ms
+   *
+   * @return
+   */
+  long millis();
+
+  /**
+   * monotonic microsec for high resolution kcp, the origin is arbitrary
+   *
+   * @return
+   */
+  long micros();
+
+  /**
+   * the time of another clock at the last {@link #tick()}, only used by the
+   * thread calling tick
+   */
+  class Cached implements Clock
+  {
+
+    private final Clock source;
+    private long now;
+    private long micros;
+
+    /**
+     * cached
+     *
+     * @param source
+     */
+    public Cached(Clock source)
+    {
+      this.source = source;
+      this.tick();
+    }
+
+    /**
+     * read the source
+     *
+     * @return the new time
+     */
+    public long tick()
+    {
+      this.micros = source.micros();
+      return this.now = source.millis();
+    }
+
+    @Override
+    public long millis()
+    {
+      return now;
+    }
+
+    @Override
+    public long micros()
+    {
+      return micros;
+    }
+  }
+
+  /**
+   * time set by the caller, not thread safe
+   */
+  class Virtual implements Clock
+  {
+
+    private long micros;
+
+    /**
+     * virtual
+     *
+     * @param start ms
+     */
+    public Virtual(long start)
+    {
+      this.set(start);
+    }
+
+    /**
+     * @param now ms
+     */
+    public void set(long now)
+    {
+      this.micros = now * 1000;
+    }
+
+    /**
+     * move forward
+     *
+     * @param ms
+     * @return the new time, ms
+     */
+    public long advance(long ms)
+    {
+      this.micros += ms * 1000;
+      return this.millis();
+    }
+
+    /**
+     * move forward by less than a ms
+     *
+     * @param us
+     * @return the new time, microsec
+     */
+    public long advanceMicros(long us)
+    {
+      return this.micros += us;
+    }
+
+    @Override
+    public long millis()
+    {
+      return micros / 1000;
+    }
+
+    @Override
+    public long micros()
+    {
+      return micros;
+    }
+  }
+}
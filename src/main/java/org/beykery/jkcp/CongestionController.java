@@ -0,0 +1,386 @@
+/**
+ * 拥塞控制
+ */
+package org.beykery.jkcp;
+
+/**
+ * congestion control of one kcp: gets the ack, rtt and loss events of the kcp
+ * and decides the send window (in segments, kcp also limits it by snd_wnd and
+ * the remote window) and the pacing rate. one instance per kcp, only called by
+ * the thread updating that kcp
+ *
+ * @author beykery
+ */
+public interface CongestionController
+{
+
+  /**
+   * one input acknowledged segments
+   *
+   * @param kcp
+   * @param acked segments removed from snd_buf
+   * @param bytes their payload
+   * @param cumulative snd_una moved forward
+   */
+  void onAck(Kcp kcp, int acked, int bytes, boolean cumulative);
+
+  /**
+   * a rtt sample
+   *
+   * @param kcp
+   * @param rtt in the time unit of the kcp, see {@link Kcp#getUnit()}
+   */
+  void onRtt(Kcp kcp, int rtt);
+
+  /**
+   * a flush resent segments skipped by later acks
+   *
+   * @param kcp
+   * @param resent the fast resend threshold
+   */
+  void onFastRetransmit(Kcp kcp, int resent);
+
+  /**
+   * a flush resent segments whose rto expired
+   *
+   * @param kcp
+   */
+  void onTimeout(Kcp kcp);
+
+  /**
+   * send window in segments
+   *
+   * @return
+   */
+  int window();
+
+  /**
+   * slow start threshold in segments, Integer.MAX_VALUE if there is none. for
+   * the counters
+   *
+   * @return
+   */
+  int ssthresh();
+
+  /**
+   * bytes per second, 0 for no pacing
+   *
+   * @return
+   */
+  long pacingRate();
+
+  /**
+   * creates the controller of each kcp
+   */
+  interface Factory
+  {
+
+    CongestionController create();
+  }
+
+  /**
+   * the classic kcp window: slow start and additive increase on cumulative
+   * acks, halved on fast retransmit, back to 1 on timeout
+   */
+  class Reno implements CongestionController
+  {
+
+    public static final Factory FACTORY = new Factory()
+    {
+      @Override
+      public CongestionController create()
+      {
+        return new Reno();
+      }
+    };
+    private int cwnd;
+    private int ssthresh = Kcp.IKCP_THRESH_INIT;
+    private int incr;
+
+    @Override
+    public void onAck(Kcp kcp, int acked, int bytes, boolean cumulative)
+    {
+      int rmt_wnd = kcp.getRmtWnd();
+      int mss = kcp.getMss();
+      if (cwnd < 1)
+      {
+        cwnd = 1;
+        incr = mss;
+      }
+      if (!cumulative || cwnd >= rmt_wnd)
+      {
+        return;
+      }
+      if (cwnd < ssthresh)
+      {
+        cwnd++;
+        incr += mss;
+      } else
+      {
+        if (incr < mss)
+        {
+          incr = mss;
+        }
+        incr += (mss * mss) / incr + (mss / 16);
+        if ((cwnd + 1) * mss <= incr)
+        {
+          cwnd++;
+        }
+      }
+      if (cwnd > rmt_wnd)
+      {
+        cwnd = rmt_wnd;
+        incr = rmt_wnd * mss;
+      }
+    }
+
+    @Override
+    public void onRtt(Kcp kcp, int rtt)
+    {
+    }
+
+    @Override
+    public void onFastRetransmit(Kcp kcp, int resent)
+    {
+      ssthresh = Math.max(kcp.getInflight() / 2, Kcp.IKCP_THRESH_MIN);
+      cwnd = ssthresh + resent;
+      incr = cwnd * kcp.getMss();
+    }
+
+    @Override
+    public void onTimeout(Kcp kcp)
+    {
+      ssthresh = Math.max(cwnd / 2, Kcp.IKCP_THRESH_MIN);
+      cwnd = 1;
+      incr = kcp.getMss();
+    }
+
+    @Override
+    public int window()
+    {
+      return Math.max(cwnd, 1);
+    }
+
+    @Override
+    public int ssthresh()
+    {
+      return ssthresh;
+    }
+
+    @Override
+    public long pacingRate()
+    {
+      return 0;
+    }
+  }
+
+  /**
+   * no congestion window, only snd_wnd and the remote window limit the
+   * sender. the same as nc=1 in noDelay
+   */
+  class None implements CongestionController
+  {
+
+    public static final Factory FACTORY = new Factory()
+    {
+      @Override
+      public CongestionController create()
+      {
+        return new None();
+      }
+    };
+
+    @Override
+    public void onAck(Kcp kcp, int acked, int bytes, boolean cumulative)
+    {
+    }
+
+    @Override
+    public void onRtt(Kcp kcp, int rtt)
+    {
+    }
+
+    @Override
+    public void onFastRetransmit(Kcp kcp, int resent)
+    {
+    }
+
+    @Override
+    public void onTimeout(Kcp kcp)
+    {
+    }
+
+    @Override
+    public int window()
+    {
+      return Integer.MAX_VALUE;
+    }
+
+    @Override
+    public int ssthresh()
+    {
+      return Integer.MAX_VALUE;
+    }
+
+    @Override
+    public long pacingRate()
+    {
+      return 0;
+    }
+  }
+
+  /**
+   * bbr style: estimates the bottleneck bandwidth (max delivery rate sample,
+   * see {@link Kcp#getDeliveryRate()}, of the last 10 rounds) and the min rtt (of the last 10 s), sends at a gain cycle
+   * around that rate with a window of two bandwidth delay products. losses do
+   * not shrink the window. startup doubles the rate each round until the
+   * bandwidth stops growing, drain then empties the queue built by startup.
+   * there is no probe rtt phase, an expired min rtt takes the next sample
+   */
+  class Bbr implements CongestionController
+  {
+
+    public static final Factory FACTORY = new Factory()
+    {
+      @Override
+      public CongestionController create()
+      {
+        return new Bbr();
+      }
+    };
+    private static final double HIGH_GAIN = 2.885;//2/ln2
+    private static final double[] CYCLE =
+    {
+      1.25, 0.75, 1, 1, 1, 1, 1, 1
+    };
+    private static final int ROUNDS = 10;
+    private static final int MIN_RTT_WINDOW = 10000;//ms
+    private static final int MIN_WINDOW = 4;
+    private static final int INIT_WINDOW = 10;
+    private static final int STARTUP = 0;
+    private static final int DRAIN = 1;
+    private static final int PROBE_BW = 2;
+    private final long[] rates = new long[ROUNDS];//delivery rate of the last rounds, bytes/s
+    private int state = STARTUP;
+    private long roundRate;//max delivery rate sample of this round
+    private int roundStart;
+    private boolean started;
+    private int round;
+    private long btlBw;//bytes/s
+    private long fullBw;
+    private int fullBwRounds;
+    private int minRtt = -1;
+    private int minRttStamp;
+    private int cycle;
+    private double pacingGain = HIGH_GAIN;
+    private double cwndGain = HIGH_GAIN;
+    private int window = INIT_WINDOW;
+
+    @Override
+    public void onAck(Kcp kcp, int acked, int bytes, boolean cumulative)
+    {
+      int now = kcp.getCurrent();
+      roundRate = Math.max(roundRate, kcp.getDeliveryRate());
+      if (!started)
+      {
+        started = true;
+        roundStart = now;
+        return;
+      }
+      if (now - roundStart < Math.max(minRtt, 1))
+      {
+        return;
+      }
+      //round end
+      rates[round % ROUNDS] = roundRate;
+      round++;
+      roundStart = now;
+      roundRate = 0;
+      long max = 0;
+      for (long r : rates)
+      {
+        max = Math.max(max, r);
+      }
+      btlBw = max;
+      switch (state)
+      {
+        case STARTUP:
+          if (btlBw >= fullBw * 5 / 4)
+          {
+            fullBw = btlBw;
+            fullBwRounds = 0;
+          } else if (++fullBwRounds >= 3)
+          {
+            state = DRAIN;
+            pacingGain = 1 / HIGH_GAIN;
+            cwndGain = 1;//without pacing only the window drains
+          }
+          break;
+        case DRAIN:
+          if (kcp.getInflight() <= this.bdp(kcp))
+          {
+            state = PROBE_BW;
+            cwndGain = 2;
+            cycle = 0;
+            pacingGain = CYCLE[0];
+          }
+          break;
+        default:
+          cycle = (cycle + 1) % CYCLE.length;
+          pacingGain = CYCLE[cycle];
+          break;
+      }
+      if (btlBw > 0 && minRtt > 0)
+      {
+        window = Math.max(MIN_WINDOW, (int) Math.ceil(cwndGain * this.bdp(kcp)));
+      }
+    }
+
+    /**
+     * bandwidth delay product in segments
+     */
+    private double bdp(Kcp kcp)
+    {
+      return (double) btlBw * Math.max(minRtt, 1) / 1000 / kcp.getUnit() / kcp.getMss();
+    }
+
+    @Override
+    public void onRtt(Kcp kcp, int rtt)
+    {
+      int now = kcp.getCurrent();
+      if (minRtt < 0 || rtt <= minRtt || now - minRttStamp > MIN_RTT_WINDOW * kcp.getUnit())
+      {
+        minRtt = Math.max(rtt, 0);
+        minRttStamp = now;
+      }
+    }
+
+    @Override
+    public void onFastRetransmit(Kcp kcp, int resent)
+    {
+    }
+
+    @Override
+    public void onTimeout(Kcp kcp)
+    {
+    }
+
+    @Override
+    public int window()
+    {
+      return window;
+    }
+
+    @Override
+    public int ssthresh()
+    {
+      return Integer.MAX_VALUE;
+    }
+
+    @Override
+    public long pacingRate()
+    {
+      return (long) (pacingGain * btlBw);
+    }
+  }
+}
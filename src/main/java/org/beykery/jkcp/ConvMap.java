@@ -0,0 +1,183 @@
+/**
+ * conv到会话的映射
+ */
+package org.beykery.jkcp;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * open addressing (linear probing) map from conv to session with primitive
+ * int keys, for the per packet lookup of a worker. not thread safe
+ *
+ * @author beykery
+ */
+class ConvMap
+{
+
+  private int[] keys;
+  private KcpOnUdp[] values;//null marks a free slot
+  private int mask;
+  private int size;
+
+  /**
+   * map
+   *
+   * @param capacity expected sessions
+   */
+  ConvMap(int capacity)
+  {
+    int n = 2;
+    while (n < capacity * 2)
+    {
+      n <<= 1;
+    }
+    this.keys = new int[n];
+    this.values = new KcpOnUdp[n];
+    this.mask = n - 1;
+  }
+
+  private int index(int key)
+  {
+    int h = key * 0x9E3779B9;
+    return (h ^ (h >>> 16)) & mask;
+  }
+
+  /**
+   * the session of conv
+   *
+   * @param conv
+   * @return null if absent
+   */
+  KcpOnUdp get(int conv)
+  {
+    for (int i = index(conv);; i = (i + 1) & mask)
+    {
+      KcpOnUdp v = values[i];
+      if (v == null || keys[i] == conv)
+      {
+        return v;
+      }
+    }
+  }
+
+  /**
+   * put
+   *
+   * @param conv
+   * @param ku
+   * @return the previous session of conv
+   */
+  KcpOnUdp put(int conv, KcpOnUdp ku)
+  {
+    int i = index(conv);
+    for (; values[i] != null; i = (i + 1) & mask)
+    {
+      if (keys[i] == conv)
+      {
+        KcpOnUdp old = values[i];
+        values[i] = ku;
+        return old;
+      }
+    }
+    keys[i] = conv;
+    values[i] = ku;
+    if (++size > values.length / 2)
+    {
+      rehash(values.length * 2);
+    }
+    return null;
+  }
+
+  /**
+   * remove
+   *
+   * @param conv
+   * @return the removed session
+   */
+  KcpOnUdp remove(int conv)
+  {
+    int i = index(conv);
+    for (;; i = (i + 1) & mask)
+    {
+      if (values[i] == null)
+      {
+        return null;
+      }
+      if (keys[i] == conv)
+      {
+        break;
+      }
+    }
+    KcpOnUdp old = values[i];
+    values[i] = null;
+    size--;
+    //shift back the entries of the same probe run
+    for (int j = (i + 1) & mask; values[j] != null; j = (j + 1) & mask)
+    {
+      int k = index(keys[j]);
+      if ((j > i && (k <= i || k > j)) || (j < i && k <= i && k > j))
+      {
+        keys[i] = keys[j];
+        values[i] = values[j];
+        values[j] = null;
+        i = j;
+      }
+    }
+    return old;
+  }
+
+  int size()
+  {
+    return size;
+  }
+
+  /**
+   * a copy of the sessions
+   *
+   * @return
+   */
+  List<KcpOnUdp> values()
+  {
+    List<KcpOnUdp> list = new ArrayList<>(size);
+    for (KcpOnUdp v : values)
+    {
+      if (v != null)
+      {
+        list.add(v);
+      }
+    }
+    return list;
+  }
+
+  void clear()
+  {
+    for (int i = 0; i < values.length; i++)
+    {
+      values[i] = null;
+    }
+    size = 0;
+  }
+
+  private void rehash(int n)
+  {
+    int[] ok = keys;
+    KcpOnUdp[] ov = values;
+    keys = new int[n];
+    values = new KcpOnUdp[n];
+    mask = n - 1;
+    for (int i = 0; i < ov.length; i++)
+    {
+      if (ov[i] != null)
+      {
+        int j = index(ok[i]);
+        while (values[j] != null)
+        {
+          j = (j + 1) & mask;
+        }
+        keys[j] = ok[i];
+        values[j] = ov[i];
+      }
+    }
+  }
+}
@@ -0,0 +1,141 @@
+/**
+ * 握手
+ */
+package org.beykery.jkcp;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import java.net.InetSocketAddress;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * stateless handshake like syn cookies. the initiator sends HELLO, the
+ * acceptor answers COOKIE with a token bound to address, conv and time without
+ * keeping anything, the initiator sends the token back in ECHO and only then
+ * the acceptor allocates the session and answers ACCEPT. every handshake
+ * datagram is conv(4) cmd(1) token(8), HELLO is padded to that size so that
+ * the answer is no larger than the request
+ *
+ * @author beykery
+ */
+class Cookie
+{
+
+  public static final byte CMD_HELLO = 90;
+  public static final byte CMD_COOKIE = 91;
+  public static final byte CMD_ECHO = 92;
+  public static final byte CMD_ACCEPT = 93;
+  public static final int SIZE = 13;
+  public static final long PERIOD = 10000;//ms, a token is valid for one to two periods
+  private final SecretKeySpec key;
+  private final ThreadLocal<Mac> macs;
+
+  /**
+   * cookie with a random secret
+   */
+  Cookie()
+  {
+    byte[] secret = new byte[32];
+    new SecureRandom().nextBytes(secret);
+    this.key = new SecretKeySpec(secret, "HmacSHA256");
+    this.macs = new ThreadLocal<Mac>()
+    {
+      @Override
+      protected Mac initialValue()
+      {
+        try
+        {
+          Mac mac = Mac.getInstance("HmacSHA256");
+          mac.init(key);
+          return mac;
+        } catch (GeneralSecurityException ex)
+        {
+          throw new IllegalStateException(ex);
+        }
+      }
+    };
+  }
+
+  /**
+   * whether the datagram is a handshake command
+   *
+   * @param cmd
+   * @return
+   */
+  static boolean isHandshake(byte cmd)
+  {
+    return cmd >= CMD_HELLO && cmd <= CMD_ACCEPT;
+  }
+
+  /**
+   * a handshake datagram
+   *
+   * @param conv
+   * @param cmd
+   * @param token
+   * @return
+   */
+  static ByteBuf encode(int conv, byte cmd, long token)
+  {
+    ByteBuf bb = PooledByteBufAllocator.DEFAULT.buffer(SIZE);
+    bb.writeInt(conv);
+    bb.writeByte(cmd);
+    bb.writeLong(token);
+    return bb;
+  }
+
+  /**
+   * token of addr and conv at the current time
+   *
+   * @param addr
+   * @param conv
+   * @return
+   */
+  long token(InetSocketAddress addr, int conv)
+  {
+    return this.token(addr, conv, System.currentTimeMillis() / PERIOD);
+  }
+
+  /**
+   * whether token was issued to addr and conv in this or the last period
+   *
+   * @param addr
+   * @param conv
+   * @param token
+   * @return
+   */
+  boolean verify(InetSocketAddress addr, int conv, long token)
+  {
+    long period = System.currentTimeMillis() / PERIOD;
+    return token == this.token(addr, conv, period) || token == this.token(addr, conv, period - 1);
+  }
+
+  private long token(InetSocketAddress addr, int conv, long period)
+  {
+    Mac mac = this.macs.get();
+    mac.update(addr.getAddress().getAddress());
+    byte[] b = new byte[14];
+    int port = addr.getPort();
+    b[0] = (byte) (port >>> 8);
+    b[1] = (byte) port;
+    for (int i = 0; i < 4; i++)
+    {
+      b[2 + i] = (byte) (conv >>> (24 - 8 * i));
+    }
+    for (int i = 0; i < 8; i++)
+    {
+      b[6 + i] = (byte) (period >>> (56 - 8 * i));
+    }
+    mac.update(b, 0, 14);
+    byte[] h = mac.doFinal();
+    long token = 0;
+    for (int i = 0; i < 8; i++)
+    {
+      token = (token << 8) | (h[i] & 0xff);
+    }
+    return token;
+  }
+}
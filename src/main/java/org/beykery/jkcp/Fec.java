@@ -0,0 +1,288 @@
+/**
+ * 前向纠错
+ */
+package org.beykery.jkcp;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import java.util.Arrays;
+
+/**
+ * forward error correction between kcp and udp of one session, like the fec of
+ * kcp-go: every dataShards datagrams are followed by parityShards reed solomon
+ * parity datagrams, a group with any dataShards datagrams received rebuilds
+ * the lost ones without waiting for a retransmission. the datagrams are
+ * conv(4) seqid(4) flag(2) shard, the shard of a data datagram is size(2)
+ * followed by the kcp datagram, so the conv stays in front for routing. only
+ * used by the worker of the session
+ *
+ * @author beykery
+ */
+class Fec
+{
+
+  public static final int HEADER = 10;//conv seqid flag
+  public static final int OVERHEAD = HEADER + 2;//of a data datagram
+  public static final int TYPE_DATA = 0xf1;
+  public static final int TYPE_PARITY = 0xf2;
+  private static final int GROUPS = 4;//groups kept for recovery, a power of 2
+  private final int conv;
+  private final ReedSolomon codec;
+  private final int dataShards;
+  private final int total;
+  private final int paws;//seqid wraps here, a multiple of total
+  //encoder
+  private final byte[][] shards;
+  private int count;//data shards of the current group
+  private int max;//longest shard of the current group
+  private int seqid;
+  //decoder
+  private final Group[] groups;
+  private final boolean[] before;//present of a group before reconstruction
+
+  /**
+   * fec
+   *
+   * @param conv
+   * @param dataShards
+   * @param parityShards
+   */
+  Fec(int conv, int dataShards, int parityShards)
+  {
+    this.conv = conv;
+    this.codec = new ReedSolomon(dataShards, parityShards);
+    this.dataShards = dataShards;
+    this.total = dataShards + parityShards;
+    this.paws = Integer.MAX_VALUE / total * total;
+    this.shards = new byte[total][0];
+    this.before = new boolean[total];
+    this.groups = new Group[GROUPS];
+    for (int i = 0; i < GROUPS; i++)
+    {
+      this.groups[i] = new Group(total);
+    }
+  }
+
+  /**
+   * whether data is a well formed fec datagram holding well formed kcp
+   * segments, does not move the reader index
+   *
+   * @param data
+   * @return
+   */
+  static boolean validate(ByteBuf data)
+  {
+    int index = data.readerIndex();
+    int len = data.readableBytes();
+    if (len < OVERHEAD + Kcp.IKCP_OVERHEAD)
+    {
+      return false;
+    }
+    switch (data.getUnsignedShort(index + 8))
+    {
+      case TYPE_DATA:
+        return data.getUnsignedShort(index + HEADER) == len - HEADER
+                && data.getInt(index + OVERHEAD) == data.getInt(index)
+                && Kcp.validate(data, index + OVERHEAD, index + len);
+      case TYPE_PARITY:
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  /**
+   * shards[i] with room for length bytes, the content is kept
+   */
+  private static byte[] ensure(byte[][] shards, int i, int length)
+  {
+    if (shards[i].length < length)
+    {
+      shards[i] = Arrays.copyOf(shards[i], Math.max(length, Kcp.IKCP_MTU_DEF));
+    }
+    return shards[i];
+  }
+
+  private ByteBuf header(int length, int flag)
+  {
+    ByteBuf bb = PooledByteBufAllocator.DEFAULT.buffer(HEADER + length);
+    bb.writeInt(conv);
+    bb.writeInt(seqid);
+    bb.writeShort(flag);
+    seqid = (seqid + 1) % paws;
+    return bb;
+  }
+
+  /**
+   * output msg of kcp as a data datagram, and the parity datagrams when a group
+   * is complete. msg is released
+   *
+   * @param msg
+   * @param kcp
+   * @param user
+   * @param output
+   */
+  void encode(ByteBuf msg, Kcp kcp, Object user, Output output)
+  {
+    int len = msg.readableBytes();
+    int size = len + 2;
+    byte[] shard = ensure(shards, count, Math.max(size, max));
+    shard[0] = (byte) (size >>> 8);
+    shard[1] = (byte) size;
+    msg.getBytes(msg.readerIndex(), shard, 2, len);
+    ByteBuf bb = this.header(size, TYPE_DATA);
+    bb.writeBytes(shard, 0, size);
+    msg.release();
+    for (int i = size; i < max; i++)//pad to the group so far
+    {
+      shard[i] = 0;
+    }
+    if (size > max)
+    {
+      for (int j = 0; j < count; j++)
+      {
+        byte[] s = ensure(shards, j, size);
+        for (int i = max; i < size; i++)
+        {
+          s[i] = 0;
+        }
+      }
+      max = size;
+    }
+    output.out(bb, kcp, user);
+    if (++count < dataShards)
+    {
+      return;
+    }
+    for (int i = dataShards; i < total; i++)
+    {
+      ensure(shards, i, max);
+    }
+    codec.encode(shards, max);
+    for (int i = dataShards; i < total; i++)
+    {
+      bb = this.header(max, TYPE_PARITY);
+      bb.writeBytes(shards[i], 0, max);
+      output.out(bb, kcp, user);
+    }
+    count = 0;
+    max = 0;
+  }
+
+  /**
+   * input a validated fec datagram into kcp, together with the datagrams it
+   * allows to rebuild. dp still belongs to the caller
+   *
+   * @param dp
+   * @param kcp
+   */
+  void decode(ByteBuf dp, Kcp kcp)
+  {
+    int index = dp.readerIndex();
+    int seq = dp.getInt(index + 4);
+    int len = dp.readableBytes() - HEADER;
+    boolean data = dp.getUnsignedShort(index + 8) == TYPE_DATA;
+    if (data)
+    {
+      kcp.input(dp.slice(index + OVERHEAD, len - 2));
+    }
+    if (seq < 0 || seq >= paws)
+    {
+      return;
+    }
+    int id = seq / total;
+    Group g = this.groups[id & (GROUPS - 1)];
+    if (g.id != id)
+    {
+      g.reset(id);
+    }
+    int i = seq - id * total;
+    if (g.done || g.present[i] || data != (i < dataShards))
+    {
+      return;
+    }
+    byte[] shard = ensure(g.shards, i, len);
+    dp.getBytes(index + HEADER, shard, 0, len);
+    g.present[i] = true;
+    g.lengths[i] = len;
+    g.max = Math.max(g.max, len);
+    g.count++;
+    if (data && ++g.data == dataShards)
+    {
+      g.done = true;
+      return;
+    }
+    if (g.count < dataShards)
+    {
+      return;
+    }
+    //a parity shard is present, max is the padded length of the group
+    for (int j = 0; j < total; j++)
+    {
+      byte[] s = ensure(g.shards, j, g.max);
+      if (g.present[j])
+      {
+        for (int k = g.lengths[j]; k < g.max; k++)
+        {
+          s[k] = 0;
+        }
+      }
+    }
+    System.arraycopy(g.present, 0, before, 0, total);
+    g.done = codec.reconstruct(g.shards, g.present, g.max);
+    for (int j = 0; j < dataShards; j++)
+    {
+      if (!before[j])
+      {
+        byte[] s = g.shards[j];
+        int size = (s[0] & 0xff) << 8 | (s[1] & 0xff);
+        if (size >= 2 + Kcp.IKCP_OVERHEAD && size <= g.max)
+        {
+          ByteBuf bb = PooledByteBufAllocator.DEFAULT.buffer(size - 2);
+          bb.writeBytes(s, 2, size - 2);
+          if (Kcp.validate(bb, 0, size - 2))//parity is not validated on arrival
+          {
+            kcp.input(bb);
+          }
+          bb.release();
+        }
+      }
+    }
+  }
+
+  /**
+   * shards of one group being received
+   */
+  private static final class Group
+  {
+
+    private int id = -1;
+    private final byte[][] shards;
+    private final boolean[] present;
+    private final int[] lengths;
+    private int count;
+    private int data;
+    private int max;
+    private boolean done;
+
+    private Group(int total)
+    {
+      this.shards = new byte[total][0];
+      this.present = new boolean[total];
+      this.lengths = new int[total];
+    }
+
+    private void reset(int id)
+    {
+      this.id = id;
+      for (int i = 0; i < present.length; i++)
+      {
+        present[i] = false;
+      }
+      count = 0;
+      data = 0;
+      max = 0;
+      done = false;
+    }
+  }
+}
@@ -0,0 +1,162 @@
+/**
+ * 直方图
+ */
+package org.beykery.jkcp;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * histogram with power of two buckets: bucket 0 counts the value 0, bucket i
+ * the values in [2^(i-1), 2^i). recording is one array store, written by one
+ * thread only (a worker) and readable from any thread without locking. the
+ * getters of a live histogram may mix two records, {@link #snapshot()} copies
+ *
+ * @author beykery
+ */
+public final class Histogram
+{
+
+  public static final int BUCKETS = 64;
+  private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+  private volatile long count;
+  private volatile long sum;
+  private volatile long max;
+
+  /**
+   * add one value, negatives count as 0. only the owning thread
+   *
+   * @param value
+   */
+  void record(long value)
+  {
+    if (value < 0)
+    {
+      value = 0;
+    }
+    int i = BUCKETS - Long.numberOfLeadingZeros(value);
+    buckets.lazySet(i, buckets.get(i) + 1);
+    count++;
+    sum += value;
+    if (value > max)
+    {
+      max = value;
+    }
+  }
+
+  /**
+   * add the values of h to this, for sums read by other threads
+   *
+   * @param h
+   */
+  void add(Histogram h)
+  {
+    for (int i = 0; i < BUCKETS; i++)
+    {
+      buckets.set(i, buckets.get(i) + h.buckets.get(i));
+    }
+    count += h.count;
+    sum += h.sum;
+    max = Math.max(max, h.max);
+  }
+
+  /**
+   * a copy
+   *
+   * @return
+   */
+  public Histogram snapshot()
+  {
+    Histogram h = new Histogram();
+    h.add(this);
+    return h;
+  }
+
+  public long getCount()
+  {
+    return count;
+  }
+
+  public long getSum()
+  {
+    return sum;
+  }
+
+  public long getMax()
+  {
+    return max;
+  }
+
+  public double getMean()
+  {
+    long n = count;
+    return n == 0 ? 0 : (double) sum / n;
+  }
+
+  /**
+   * counts by bucket
+   *
+   * @return
+   */
+  public long[] getBuckets()
+  {
+    long[] r = new long[BUCKETS];
+    for (int i = 0; i < BUCKETS; i++)
+    {
+      r[i] = buckets.get(i);
+    }
+    return r;
+  }
+
+  public long getP50()
+  {
+    return this.percentile(0.5);
+  }
+
+  public long getP99()
+  {
+    return this.percentile(0.99);
+  }
+
+  public long getP999()
+  {
+    return this.percentile(0.999);
+  }
+
+  /**
+   * upper bound of the bucket holding the p quantile, at most the max
+   *
+   * @param p 0..1
+   * @return
+   */
+  public long percentile(double p)
+  {
+    long[] b = this.getBuckets();
+    long n = 0;
+    for (long c : b)
+    {
+      n += c;
+    }
+    if (n == 0)
+    {
+      return 0;
+    }
+    long rank = (long) Math.ceil(p * n);
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++)
+    {
+      seen += b[i];
+      if (seen >= rank && b[i] > 0)
+      {
+        long upper = (1L << i) - 1;
+        return Math.min(upper, max);
+      }
+    }
+    return max;
+  }
+
+  @Override
+  public String toString()
+  {
+    return "count " + count + " mean " + (long) this.getMean() + " p50 " + getP50() + " p99 " + getP99() + " p999 " + getP999() + " max " + max;
+  }
+}
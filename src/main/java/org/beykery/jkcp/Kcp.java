@@ -9,8 +9,12 @@
 package org.beykery.jkcp;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
 import io.netty.buffer.PooledByteBufAllocator;
-import java.util.LinkedList;
+import io.netty.buffer.Unpooled;
+import io.netty.util.Recycler;
+import java.util.ArrayDeque;
+import java.util.Arrays;
 
 /**
  *
@@ -40,6 +44,8 @@ public class Kcp
   public static final int IKCP_THRESH_MIN = 2;
   public static final int IKCP_PROBE_INIT = 7000;   // 7 secs to probe window size
   public static final int IKCP_PROBE_LIMIT = 120000; // up to 120 secs to probe window
+  public static final int IKCP_PACE_BURST = 2; // ms of pacing budget kept at most
+  public static final int IKCP_UNIT_US = 1000; // time units per ms in high resolution
 
   private final int conv;
   private int mtu;
@@ -50,7 +56,6 @@ public class Kcp
   private int rcv_nxt;
   private int ts_recent;
   private int ts_lastack;
-  private int ssthresh;
   private int rx_rttval;
   private int rx_srtt;
   private int rx_rto;
@@ -58,9 +63,9 @@ public class Kcp
   private int snd_wnd;
   private int rcv_wnd;
   private int rmt_wnd;
-  private int cwnd;
   private int probe;
   private int current;
+  private int unit = 1;//time units per ms, IKCP_UNIT_US in high resolution
   private int interval;
   private int ts_flush;
   private int xmit;
@@ -69,18 +74,40 @@ public class Kcp
   private int ts_probe;
   private int probe_wait;
   private final int dead_link;
-  private int incr;
-  private final LinkedList<Segment> snd_queue = new LinkedList<>();
-  private final LinkedList<Segment> rcv_queue = new LinkedList<>();
-  private final LinkedList<Segment> snd_buf = new LinkedList<>();
-  private final LinkedList<Segment> rcv_buf = new LinkedList<>();
-  private final LinkedList<Integer> acklist = new LinkedList<>();
+  private final ArrayDeque<Segment> snd_queue = new ArrayDeque<>();
+  private final ArrayDeque<Segment> rcv_queue = new ArrayDeque<>();
+  private final Ring snd_buf = new Ring(IKCP_WND_SND);
+  private final Heap resend = new Heap(IKCP_WND_SND);//sent segments of snd_buf by due
+  private final Ring rcv_buf = new Ring(IKCP_WND_RCV);
+  private int[] acklist = new int[IKCP_WND_RCV * 2];//sn,ts pairs
+  private int ackcount;
+  private final Segment ctrl = Segment.control();//ack and probe template
+  private int buffered;//payload bytes held by the queues and buffers
+  private boolean zeroCopy;//segments reference the user and datagram buffers
+  private boolean stream;//byte stream instead of messages
+  private CompositeByteBuf packet;//datagram being built in zero copy mode
+  private int mark;//header bytes of buffer before mark are already in packet
   private ByteBuf buffer;
   private int fastresend;
   private int nocwnd;
+  private CongestionController congestion = new CongestionController.Reno();
+  private int acked;//segments acked by the current input
+  private int ackedBytes;
+  private int delivered;//payload bytes acknowledged so far, wraps
+  private long deliveryRate;//largest rate sample of the current input, bytes/s
+  private long pacing = -1;//bytes/s, 0 follows the congestion controller, <0 off
+  private long pace_budget;//bytes the pacer allows to send now, negative is a debt
+  private int ts_pace;//last refill of the budget
+  private int ts_paced;//flush again at this time for the segments held back
+  private boolean paced;//the last flush held back segments
+  private int snd_unsent;//segments of snd_buf never sent yet
+  private int snd_sent;//sn of the first segment of snd_buf never sent
+  private final Snmp snmp = new Snmp();
+  private int repeat;//duplicate data segments of the current input
+  private int accepted;//new data segments taken into the receive window, wraps
   private int logmask;
   private final Output output;
-  private final Object user;
+  private Object user;
   private int nextUpdate;//the next update time.
 
   private static int _ibound_(int lower, int middle, int upper)
@@ -94,11 +121,20 @@ public class Kcp
   }
 
   /**
-   * SEGMENT
+   * SEGMENT, pooled per thread (the worker owning the kcp)
    */
-  class Segment
+  static final class Segment
   {
 
+    private static final Recycler<Segment> RECYCLER = new Recycler<Segment>()
+    {
+      @Override
+      protected Segment newObject(Recycler.Handle<Segment> handle)
+      {
+        return new Segment(handle);
+      }
+    };
+    private final Recycler.Handle<Segment> handle;
     private int conv = 0;
     private byte cmd = 0;
     private int frg = 0;
@@ -110,11 +146,76 @@ public class Kcp
     private int rto = 0;
     private int fastack = 0;
     private int xmit = 0;
-    private final ByteBuf data;
+    private int delivered = 0;//bytes delivered when last sent
+    private int due = 0;//resendts, or earlier once fastack reached fastresend
+    private int heap = -1;//index in the resend heap, -1 absent
+    private ByteBuf data;
+
+    private Segment(Recycler.Handle<Segment> handle)
+    {
+      this.handle = handle;
+    }
+
+    /**
+     * a pooled segment with room for size bytes
+     *
+     * @param size
+     * @return
+     */
+    private static Segment get(int size)
+    {
+      Segment seg = RECYCLER.get();
+      seg.data = PooledByteBufAllocator.DEFAULT.buffer(size);
+      return seg;
+    }
+
+    /**
+     * a pooled segment over data, the segment takes the reference
+     *
+     * @param data
+     * @return
+     */
+    private static Segment get(ByteBuf data)
+    {
+      Segment seg = RECYCLER.get();
+      seg.data = data;
+      return seg;
+    }
 
-    private Segment(int size)
+    /**
+     * a header only segment, never recycled
+     *
+     * @return
+     */
+    private static Segment control()
     {
-      this.data = PooledByteBufAllocator.DEFAULT.buffer(size);
+      Segment seg = new Segment(null);
+      seg.data = Unpooled.EMPTY_BUFFER;
+      return seg;
+    }
+
+    /**
+     * release the data and give the segment back to the pool
+     */
+    private void recycle()
+    {
+      data.release();
+      data = null;
+      conv = 0;
+      cmd = 0;
+      frg = 0;
+      wnd = 0;
+      ts = 0;
+      sn = 0;
+      una = 0;
+      resendts = 0;
+      rto = 0;
+      fastack = 0;
+      xmit = 0;
+      delivered = 0;
+      due = 0;
+      heap = -1;
+      handle.recycle(this);
     }
 
     /**
@@ -139,6 +240,306 @@ public class Kcp
     }
   }
 
+  /**
+   * segment window indexed by sn (slot = sn & mask), used for snd_buf and
+   * rcv_buf so that lookup, insert and removal by sn are O(1)
+   */
+  private final class Ring
+  {
+
+    private Segment[] slots;
+    private int mask;
+    private int first;//smallest sn in the ring
+    private int end;//largest sn in the ring + 1
+    private int size;
+
+    private Ring(int capacity)
+    {
+      int n = 1;
+      while (n < capacity)
+      {
+        n <<= 1;
+      }
+      this.slots = new Segment[n];
+      this.mask = n - 1;
+    }
+
+    private int size()
+    {
+      return size;
+    }
+
+    private boolean isEmpty()
+    {
+      return size == 0;
+    }
+
+    /**
+     * smallest sn, only meaningful when not empty
+     *
+     * @return
+     */
+    private int first()
+    {
+      return first;
+    }
+
+    /**
+     * largest sn + 1, equals first() when empty
+     *
+     * @return
+     */
+    private int end()
+    {
+      return end;
+    }
+
+    private Segment peekFirst()
+    {
+      return size == 0 ? null : slots[first & mask];
+    }
+
+    /**
+     * the segment with this sn, null if absent
+     *
+     * @param sn
+     * @return
+     */
+    private Segment get(int sn)
+    {
+      if (size == 0 || _itimediff(sn, first) < 0 || _itimediff(sn, end) >= 0)
+      {
+        return null;
+      }
+      return slots[sn & mask];
+    }
+
+    /**
+     * insert a segment at its sn
+     *
+     * @param seg
+     * @return false if a segment with the same sn is already there
+     */
+    private boolean put(Segment seg)
+    {
+      int sn = seg.sn;
+      if (size == 0)
+      {
+        first = sn;
+        end = sn + 1;
+      } else
+      {
+        int nfirst = _itimediff(sn, first) < 0 ? sn : first;
+        int nend = _itimediff(sn, end) >= 0 ? sn + 1 : end;
+        if (_itimediff(nend, nfirst) > slots.length)
+        {
+          grow(_itimediff(nend, nfirst));
+        }
+        if (slots[sn & mask] != null)
+        {
+          return false;
+        }
+        first = nfirst;
+        end = nend;
+      }
+      slots[sn & mask] = seg;
+      size++;
+      return true;
+    }
+
+    /**
+     * remove the segment with this sn
+     *
+     * @param sn
+     * @return the removed segment, null if absent
+     */
+    private Segment remove(int sn)
+    {
+      Segment seg = get(sn);
+      if (seg == null)
+      {
+        return null;
+      }
+      slots[sn & mask] = null;
+      size--;
+      if (size == 0)
+      {
+        first = end;
+      } else if (sn == first)
+      {
+        do
+        {
+          first++;
+        } while (slots[first & mask] == null);
+      } else if (sn == end - 1)
+      {
+        do
+        {
+          end--;
+        } while (slots[(end - 1) & mask] == null);
+      }
+      return seg;
+    }
+
+    private Segment removeFirst()
+    {
+      return size == 0 ? null : remove(first);
+    }
+
+    private void grow(int span)
+    {
+      int n = slots.length;
+      while (n < span)
+      {
+        n <<= 1;
+      }
+      Segment[] temp = new Segment[n];
+      for (int sn = first; sn != end; sn++)
+      {
+        temp[sn & (n - 1)] = slots[sn & mask];
+      }
+      slots = temp;
+      mask = n - 1;
+    }
+  }
+
+  /**
+   * min heap of the sent segments by due, so that check reads the next
+   * retransmission at the top and flush visits only the segments due
+   */
+  private final class Heap
+  {
+
+    private Segment[] items;
+    private int size;
+
+    private Heap(int capacity)
+    {
+      this.items = new Segment[capacity];
+    }
+
+    private int size()
+    {
+      return size;
+    }
+
+    private Segment peek()
+    {
+      return size == 0 ? null : items[0];
+    }
+
+    private void add(Segment seg)
+    {
+      if (size == items.length)
+      {
+        items = Arrays.copyOf(items, size * 2);
+      }
+      seg.heap = size;
+      items[size++] = seg;
+      up(seg.heap);
+    }
+
+    private Segment poll()
+    {
+      if (size == 0)
+      {
+        return null;
+      }
+      Segment seg = items[0];
+      this.remove(seg);
+      return seg;
+    }
+
+    /**
+     * remove a segment, nothing if absent
+     *
+     * @param seg
+     */
+    private void remove(Segment seg)
+    {
+      int i = seg.heap;
+      if (i < 0)
+      {
+        return;
+      }
+      seg.heap = -1;
+      Segment last = items[--size];
+      items[size] = null;
+      if (i < size)
+      {
+        items[i] = last;
+        last.heap = i;
+        down(i);
+        up(last.heap);
+      }
+    }
+
+    /**
+     * the due of seg became earlier
+     *
+     * @param seg
+     */
+    private void decrease(Segment seg)
+    {
+      up(seg.heap);
+    }
+
+    private void clear()
+    {
+      for (int i = 0; i < size; i++)
+      {
+        items[i].heap = -1;
+        items[i] = null;
+      }
+      size = 0;
+    }
+
+    private void up(int i)
+    {
+      Segment seg = items[i];
+      while (i > 0)
+      {
+        int parent = (i - 1) >>> 1;
+        Segment p = items[parent];
+        if (_itimediff(seg.due, p.due) >= 0)
+        {
+          break;
+        }
+        items[i] = p;
+        p.heap = i;
+        i = parent;
+      }
+      items[i] = seg;
+      seg.heap = i;
+    }
+
+    private void down(int i)
+    {
+      Segment seg = items[i];
+      int half = size >>> 1;
+      while (i < half)
+      {
+        int child = 2 * i + 1;
+        Segment c = items[child];
+        int right = child + 1;
+        if (right < size && _itimediff(items[right].due, c.due) < 0)
+        {
+          child = right;
+          c = items[child];
+        }
+        if (_itimediff(seg.due, c.due) <= 0)
+        {
+          break;
+        }
+        items[i] = c;
+        c.heap = i;
+        i = child;
+      }
+      items[i] = seg;
+      seg.heap = i;
+    }
+  }
+
   /**
    * create a new kcpcb
    *
@@ -158,7 +559,6 @@ public class Kcp
     rx_minrto = IKCP_RTO_MIN;
     interval = IKCP_INTERVAL;
     ts_flush = IKCP_INTERVAL;
-    ssthresh = IKCP_THRESH_INIT;
     dead_link = IKCP_DEADLINK;
     buffer = PooledByteBufAllocator.DEFAULT.buffer((mtu + IKCP_OVERHEAD) * 3);
     this.output = output;
@@ -176,7 +576,16 @@ public class Kcp
     {
       return -1;
     }
-    Segment seq = rcv_queue.getFirst();
+    if (stream)
+    {
+      int length = 0;
+      for (Segment item : rcv_queue)
+      {
+        length += item.data.readableBytes();
+      }
+      return length;
+    }
+    Segment seq = rcv_queue.peekFirst();
     if (0 == seq.frg)
     {
       return seq.data.readableBytes();
@@ -229,9 +638,9 @@ public class Kcp
     for (Segment seg : rcv_queue)
     {
       n += seg.data.readableBytes();
-      buffer.writeBytes(seg.data);
+      buffer.writeBytes(seg.data, seg.data.readerIndex(), seg.data.readableBytes());
       count++;
-      if (0 == seg.frg)
+      if (0 == seg.frg && !stream)
       {
         break;
       }
@@ -240,42 +649,70 @@ public class Kcp
     {
       for (int i = 0; i < count; i++)
       {
-        rcv_queue.removeFirst();
+        free(rcv_queue.removeFirst());
       }
     }
-    // move available data from rcv_buf -> rcv_queue
-    count = 0;
-    for (Segment seg : rcv_buf)
+    move_buf();
+    // fast recover
+    if (rcv_queue.size() < rcv_wnd && fast_recover)
     {
-      if (seg.sn == rcv_nxt && rcv_queue.size() < rcv_wnd)
-      {
-        rcv_queue.add(seg);
-        rcv_nxt++;
-        count++;
-      } else
-      {
-        break;
-      }
+      // ready to send back IKCP_CMD_WINS in ikcp_flush
+      // tell remote my window size
+      probe |= IKCP_ASK_TELL;
     }
-    if (0 < count)
+    return n;
+  }
+
+  /**
+   * user/upper level recv without copying: returns the next message, a
+   * CompositeByteBuf when it spans several segments, or null for EAGAIN. the
+   * caller owns (and releases) the returned buffer
+   *
+   * @return
+   */
+  public ByteBuf receive()
+  {
+    if (0 > peekSize())
     {
-      for (int i = 0; i < count; i++)
+      return null;
+    }
+    boolean fast_recover = rcv_queue.size() >= rcv_wnd;
+    ByteBuf bb;
+    Segment seg = rcv_queue.removeFirst();
+    if (0 == seg.frg && (!stream || rcv_queue.isEmpty()))
+    {
+      bb = seg.data.retain();
+      free(seg);
+    } else
+    {
+      CompositeByteBuf cb = PooledByteBufAllocator.DEFAULT.compositeBuffer(stream ? rcv_queue.size() + 1 : seg.frg + 1);
+      while (true)
       {
-        rcv_buf.removeFirst();
+        cb.addComponent(true, seg.data.retain());
+        int frg = seg.frg;
+        free(seg);
+        if (stream ? rcv_queue.isEmpty() : 0 == frg)
+        {
+          break;
+        }
+        seg = rcv_queue.removeFirst();
       }
+      bb = cb;
     }
+    move_buf();
     // fast recover
     if (rcv_queue.size() < rcv_wnd && fast_recover)
     {
-      // ready to send back IKCP_CMD_WINS in ikcp_flush
-      // tell remote my window size
       probe |= IKCP_ASK_TELL;
     }
-    return n;
+    return bb;
   }
 
   /**
-   * user/upper level send, returns below zero for error
+   * user/upper level send, returns below zero for error. the data is copied
+   * (or sliced and retained in zero copy mode), buffer still belongs to the
+   * caller. in stream mode the data first fills up the last queued segment and
+   * is always copied
    *
    * @param buffer
    * @return
@@ -286,6 +723,20 @@ public class Kcp
     {
       return -1;
     }
+    if (stream)
+    {
+      Segment old = snd_queue.peekLast();
+      if (old != null && old.data.readableBytes() < mss)
+      {
+        int extend = Math.min(buffer.readableBytes(), mss - old.data.readableBytes());
+        old.data.writeBytes(buffer, extend);
+        buffered += extend;
+      }
+      if (0 == buffer.readableBytes())
+      {
+        return 0;
+      }
+    }
     int count;
     if (buffer.readableBytes() < mss)
     {
@@ -294,7 +745,7 @@ public class Kcp
     {
       count = (buffer.readableBytes() + mss - 1) / mss;
     }
-    if (255 < count)
+    if (255 < count && !stream)
     {
       return -2;
     }
@@ -312,14 +763,33 @@ public class Kcp
       {
         size = buffer.readableBytes();
       }
-      Segment seg = new Segment(size);
-      seg.data.writeBytes(buffer, size);
-      seg.frg = count - i - 1;
+      Segment seg;
+      if (zeroCopy && !stream)
+      {
+        seg = Segment.get(buffer.readRetainedSlice(size));
+      } else
+      {
+        seg = Segment.get(stream ? mss : size);
+        seg.data.writeBytes(buffer, size);
+      }
+      seg.frg = stream ? 0 : count - i - 1;
       snd_queue.add(seg);
+      buffered += size;
     }
     return 0;
   }
 
+  /**
+   * drop a segment owned by the queues or buffers
+   *
+   * @param seg
+   */
+  private void free(Segment seg)
+  {
+    buffered -= seg.data.readableBytes();
+    seg.recycle();
+  }
+
   /**
    * update ack.
    *
@@ -346,14 +816,16 @@ public class Kcp
       }
     }
     int rto = rx_srtt + Math.max(1, 4 * rx_rttval);
-    rx_rto = _ibound_(rx_minrto, rto, IKCP_RTO_MAX);
+    rx_rto = _ibound_(rx_minrto, rto, IKCP_RTO_MAX * unit);
+    congestion.onRtt(this, rtt);
   }
 
   private void shrink_buf()
   {
-    if (snd_buf.size() > 0)
+    Segment seg = snd_buf.peekFirst();
+    if (seg != null)
     {
-      snd_una = snd_buf.getFirst().sn;
+      snd_una = seg.sn;
     } else
     {
       snd_una = snd_nxt;
@@ -366,48 +838,81 @@ public class Kcp
     {
       return;
     }
-    int index = 0;
-    for (int i = 0; i < snd_buf.size(); i++)
+    Segment seg = snd_buf.remove(sn);
+    if (seg != null)
+    {
+      acked(seg);
+    }
+  }
+
+  /**
+   * a segment of snd_buf was acknowledged
+   *
+   * @param seg
+   */
+  private void acked(Segment seg)
+  {
+    int bytes = seg.data.readableBytes();
+    acked++;
+    ackedBytes += bytes;
+    delivered += bytes;
+    if (seg.xmit == 0)
+    {
+      snd_unsent--;
+    }
+    resend.remove(seg);
+    int elapsed = _itimediff(current, seg.ts);
+    if (elapsed > 0 && elapsed >= rx_srtt / 2)//short samples are mostly timer granularity
+    {
+      deliveryRate = Math.max(deliveryRate, (long) (delivered - seg.delivered) * 1000 * unit / elapsed);
+    }
+    free(seg);
+  }
+
+  /**
+   * segments before the largest acked sn of one input were skipped by the
+   * remote once more
+   *
+   * @param maxack
+   */
+  private void parse_fastack(int maxack)
+  {
+    if (_itimediff(maxack, snd_una) < 0 || _itimediff(maxack, snd_nxt) >= 0)
+    {
+      return;
+    }
+    for (int i = snd_buf.first(); _itimediff(i, maxack) < 0; i++)
     {
       Segment seg = snd_buf.get(i);
-      if (sn == seg.sn)
-      {
-        snd_buf.remove(index);
-        break;
-      } else
+      if (seg != null)
       {
         seg.fastack++;
+        if (fastresend > 0 && seg.fastack >= fastresend && seg.heap >= 0 && _itimediff(current, seg.due) < 0)
+        {
+          seg.due = current;
+          resend.decrease(seg);
+        }
       }
-      index++;
     }
   }
 
   private void parse_una(int una)
   {
-    int count = 0;
-    for (Segment seg : snd_buf)
+    while (!snd_buf.isEmpty() && _itimediff(una, snd_buf.first()) > 0)
     {
-      if (_itimediff(una, seg.sn) > 0)
-      {
-        count++;
-      } else
-      {
-        break;
-      }
-    }
-    if (0 < count)
-    {
-      for (int i = 0; i < count; i++)
-      {
-        snd_buf.removeFirst();
-      }
+      acked(snd_buf.removeFirst());
     }
   }
 
   private void ack_push(int sn, int ts)
   {
-    acklist.add(sn);
-    acklist.add(ts);
+    if (ackcount * 2 + 2 > acklist.length)
+    {
+      acklist = Arrays.copyOf(acklist, acklist.length * 2);
+    }
+    acklist[ackcount * 2] = sn;
+    acklist[ackcount * 2 + 1] = ts;
+    ackcount++;
   }
 
   private void parse_data(Segment newseg)
@@ -415,61 +920,93 @@ public class Kcp
     int sn = newseg.sn;
     if (_itimediff(sn, rcv_nxt + rcv_wnd) >= 0 || _itimediff(sn, rcv_nxt) < 0)
     {
+      newseg.recycle();
       return;
     }
-    int n = rcv_buf.size() - 1;
-    int after_idx = -1;
-    boolean repeat = false;
-    for (int i = n; i >= 0; i--)
+    if (rcv_buf.put(newseg))
     {
-      Segment seg = rcv_buf.get(i);
-      if (seg.sn == sn)
-      {
-        repeat = true;
-        break;
-      }
-      if (_itimediff(sn, seg.sn) > 0)
+      accepted++;
+      buffered += newseg.data.readableBytes();
+    } else
+    {
+      newseg.recycle();//repeat
+      repeat++;
+    }
+    move_buf();
+  }
+
+  /**
+   * move available data from rcv_buf -> rcv_queue
+   */
+  private void move_buf()
+  {
+    while (rcv_queue.size() < rcv_wnd)
+    {
+      Segment seg = rcv_buf.remove(rcv_nxt);
+      if (seg == null)
       {
-        after_idx = i;
         break;
       }
+      rcv_queue.add(seg);
+      rcv_nxt++;
     }
-    if (!repeat)
+  }
+
+  /**
+   * whether data is a well formed datagram: complete segments of one conv with
+   * known commands, payload only in PUSH, nothing after the last segment. does
+   * not move the reader index
+   *
+   * @param data
+   * @return
+   */
+  public static boolean validate(ByteBuf data)
+  {
+    return validate(data, data.readerIndex(), data.writerIndex());
+  }
+
+  /**
+   * {@link #validate(ByteBuf)} of the bytes [index, end) of data
+   *
+   * @param data
+   * @param index
+   * @param end
+   * @return
+   */
+  public static boolean validate(ByteBuf data, int index, int end)
+  {
+    if (end - index < IKCP_OVERHEAD)
     {
-      if (after_idx == -1)
-      {
-        rcv_buf.addFirst(newseg);
-      } else
-      {
-        rcv_buf.add(after_idx + 1, newseg);
-      }
+      return false;
     }
-    // move available data from rcv_buf -> rcv_queue
-    int count = 0;
-    for (Segment seg : rcv_buf)
+    int conv = data.getInt(index);
+    while (index < end)
     {
-      if (seg.sn == rcv_nxt && rcv_queue.size() < rcv_wnd)
-      {
-        rcv_queue.add(seg);
-        rcv_nxt++;
-        count++;
-      } else
+      if (end - index < IKCP_OVERHEAD || data.getInt(index) != conv)
       {
-        break;
+        return false;
       }
-    }
-    if (0 < count)
-    {
-      for (int i = 0; i < count; i++)
+      int cmd = data.getByte(index + 4);
+      int length = data.getInt(index + 20);
+      if (cmd == IKCP_CMD_PUSH)
+      {
+        if (length < 0 || length > end - index - IKCP_OVERHEAD)
+        {
+          return false;
+        }
+      } else if ((cmd != IKCP_CMD_ACK && cmd != IKCP_CMD_WASK && cmd != IKCP_CMD_WINS) || length != 0)
       {
-        rcv_buf.removeFirst();
+        return false;
       }
+      index += IKCP_OVERHEAD + length;
     }
+    return true;
   }
 
   /**
    *
-   * when you received a low level packet (eg. UDP packet), call it
+   * when you received a low level packet (eg. UDP packet), call it. data
+   * still belongs to the caller
    *
    * @param data
    * @return
@@ -482,6 +1019,15 @@ public class Kcp
       return -1;
     }
     int offset = 0;
+    int bytes = data.readableBytes();
+    int segs = 0;
+    int outOfWindow = 0;
+    boolean ackSeen = false;
+    int maxack = 0;
+    this.repeat = 0;
+    this.acked = 0;
+    this.ackedBytes = 0;
+    this.deliveryRate = 0;
     while (true)
     {
       int ts;
@@ -516,10 +1062,11 @@ public class Kcp
       offset += 4;
       length = data.readInt();
       offset += 4;
-      if (data.readableBytes() < length)
+      if (length < 0 || data.readableBytes() < length)
       {
         return -2;
       }
+      segs++;
       switch ((int) cmd)
       {
         case IKCP_CMD_PUSH:
@@ -542,6 +1089,11 @@ public class Kcp
           }
           parse_ack(sn);
           shrink_buf();
+          if (!ackSeen || _itimediff(sn, maxack) > 0)
+          {
+            ackSeen = true;
+            maxack = sn;
+          }
           break;
         case IKCP_CMD_PUSH:
           if (_itimediff(sn, rcv_nxt + rcv_wnd) < 0)
@@ -549,7 +1101,15 @@ public class Kcp
             ack_push(sn, ts);
             if (_itimediff(sn, rcv_nxt) >= 0)
             {
-              Segment seg = new Segment(length);
+              Segment seg;
+              if (zeroCopy)
+              {
+                seg = Segment.get(data.readRetainedSlice(length));
+              } else
+              {
+                seg = Segment.get(length);
+                seg.data.writeBytes(data, length);
+              }
               seg.conv = conv_;
               seg.cmd = cmd;
               seg.frg = frg & 0x000000ff;
@@ -557,13 +1117,15 @@ public class Kcp
               seg.ts = ts;
               seg.sn = sn;
               seg.una = una;
-              if (length > 0)
-              {
-                seg.data.writeBytes(data, length);
-              }
               parse_data(seg);
+              break;
             }
+            repeat++;
+          } else
+          {
+            outOfWindow++;
           }
+          data.skipBytes(length);
           break;
         case IKCP_CMD_WASK:
           // ready to send back IKCP_CMD_WINS in Ikcp_flush
@@ -578,44 +1140,176 @@ public class Kcp
       }
       offset += length;
     }
-    if (_itimediff(snd_una, s_una) > 0)
+    if (ackSeen)
+    {
+      parse_fastack(maxack);
+    }
+    if (this.acked > 0)
+    {
+      congestion.onAck(this, this.acked, this.ackedBytes, _itimediff(snd_una, s_una) > 0);
+    }
+    snmp.input(bytes, segs, repeat, outOfWindow);
+    if (unit != 1 && ackcount > 0 && updated != 0)
+    {
+      //waiting for the next flush would dominate a sub ms rtt of the peer
+      int n = ackcount;
+      if (this.flush_ack(ctrl) > 0)
+      {
+        emit();
+      }
+      snmp.flush(n, 0, 0);
+    }
+    return 0;
+  }
+
+  /**
+   * the time of the input that follows, so that its rtt samples are not taken
+   * at the last update. update sets it too
+   *
+   * @param current millisec, microsec in high resolution
+   */
+  public void setCurrent(long current)
+  {
+    this.current = (int) current;
+  }
+
+  private int wnd_unused()
+  {
+    if (rcv_queue.size() < rcv_wnd)
+    {
+      return rcv_wnd - rcv_queue.size();
+    }
+    return 0;
+  }
+
+  /**
+   * append a data segment to the datagram being built. in zero copy mode the
+   * payload is not copied, the datagram becomes a composite of header slices
+   * and payload duplicates
+   *
+   * @param seg
+   * @return bytes appended
+   */
+  private int append(Segment seg)
+  {
+    int n = seg.encode(buffer);
+    int len = seg.data.readableBytes();
+    if (len > 0)
+    {
+      if (zeroCopy)
+      {
+        if (packet == null)
+        {
+          packet = PooledByteBufAllocator.DEFAULT.compositeBuffer();
+        }
+        packet.addComponent(true, buffer.retainedSlice(mark, buffer.writerIndex() - mark));
+        packet.addComponent(true, seg.data.retainedDuplicate());
+        mark = buffer.writerIndex();
+      } else
+      {
+        buffer.writeBytes(seg.data, seg.data.readerIndex(), len);
+      }
+    }
+    return n + len;
+  }
+
+  /**
+   * hand the datagram being built to output
+   */
+  private void emit()
+  {
+    ByteBuf msg = buffer;
+    if (packet != null)
+    {
+      if (buffer.writerIndex() > mark)
+      {
+        packet.addComponent(true, buffer.retainedSlice(mark, buffer.writerIndex() - mark));
+      }
+      buffer.release();
+      msg = packet;
+      packet = null;
+    }
+    snmp.output(msg.readableBytes());
+    this.output.out(msg, this, user);
+    buffer = PooledByteBufAllocator.DEFAULT.buffer((mtu + IKCP_OVERHEAD) * 3);
+    mark = 0;
+  }
+
+  /**
+   * encode the acks, the last datagram is left to the caller
+   *
+   * @param seg ctrl
+   * @return bytes in the datagram being built
+   */
+  private int flush_ack(Segment seg)
+  {
+    seg.conv = conv;
+    seg.cmd = IKCP_CMD_ACK;
+    seg.wnd = wnd_unused();
+    seg.una = rcv_nxt;
+    int count = ackcount;
+    int offset = 0;
+    for (int i = 0; i < count; i++)
     {
-      if (cwnd < rmt_wnd)
+      if (offset + IKCP_OVERHEAD > mtu)
       {
-        int mss_ = mss;
-        if (cwnd < ssthresh)
-        {
-          cwnd++;
-          incr += mss_;
-        } else
-        {
-          if (incr < mss_)
-          {
-            incr = mss_;
-          }
-          incr += (mss_ * mss_) / incr + (mss_ / 16);
-          if ((cwnd + 1) * mss_ <= incr)
-          {
-            cwnd++;
-          }
-        }
-        if (cwnd > rmt_wnd)
-        {
-          cwnd = rmt_wnd;
-          incr = rmt_wnd * mss_;
-        }
+        emit();
+        offset = 0;
       }
+      seg.sn = acklist[i * 2 + 0];
+      seg.ts = acklist[i * 2 + 1];
+      offset += seg.encode(buffer);
     }
-    return 0;
+    ackcount = 0;
+    return offset;
   }
 
-  private int wnd_unused()
+  /**
+   * whether the pacer holds back the data segments left in this flush, the
+   * rest waits for the budget, at least 1ms
+   *
+   * @param cur
+   * @param rate pacing rate, 0 not pacing
+   * @return
+   */
+  private boolean pace_wait(int cur, long rate)
   {
-    if (rcv_queue.size() < rcv_wnd)
+    if (rate > 0 && pace_budget <= 0)
     {
-      return rcv_wnd - rcv_queue.size();
+      paced = true;
+      ts_paced = cur + (int) Math.max(unit, ((1 - pace_budget) * 1000 * unit + rate - 1) / rate);
+      return true;
     }
-    return 0;
+    return false;
+  }
+
+  /**
+   * append a data segment sent now to the datagram being built
+   *
+   * @param segment
+   * @param wnd
+   * @param offset bytes in the datagram being built
+   * @return bytes in the datagram being built after it
+   */
+  private int transmit(Segment segment, int wnd, int offset)
+  {
+    segment.ts = current;
+    segment.wnd = wnd;
+    segment.una = rcv_nxt;
+    segment.delivered = delivered;
+    int need = IKCP_OVERHEAD + segment.data.readableBytes();
+    if (offset + need > mtu)
+    {
+      emit();
+      offset = 0;
+    }
+    offset += append(segment);
+    pace_budget -= need;
+    if (segment.xmit >= dead_link)
+    {
+      state = 0;
+    }
+    return offset;
   }
 
   /**
@@ -626,48 +1320,41 @@ public class Kcp
     int cur = current;
     int change = 0;
     int lost = 0;
+    int segs = 0;
     if (0 == updated)
     {
       return;
     }
-    Segment seg = new Segment(0);
-    seg.conv = conv;
-    seg.cmd = IKCP_CMD_ACK;
-    seg.wnd = wnd_unused();
-    seg.una = rcv_nxt;
-    // flush acknowledges
-    int count = acklist.size() / 2;
-    int offset = 0;
-    for (int i = 0; i < count; i++)
+    long rate = 0;
+    paced = false;
+    if (pacing >= 0)
     {
-      if (offset + IKCP_OVERHEAD > mtu)
-      {
-        this.output.out(buffer, this, user);
-        offset = 0;
-        buffer = PooledByteBufAllocator.DEFAULT.buffer((mtu + IKCP_OVERHEAD) * 3);
-      }
-      seg.sn = acklist.get(i * 2 + 0);
-      seg.ts = acklist.get(i * 2 + 1);
-      offset += seg.encode(buffer);
+      rate = this.pace_rate();
+      int elapsed = _itimediff(cur, ts_pace);
+      long burst = Math.max(mtu * 2, rate * IKCP_PACE_BURST / 1000);
+      ts_pace = cur;
+      pace_budget = elapsed < 0 || elapsed >= 1000 * unit ? burst : Math.min(burst, pace_budget + rate * elapsed / (1000L * unit));
     }
-    acklist.clear();
+    Segment seg = ctrl;
+    segs += ackcount;
+    int offset = this.flush_ack(seg);
     // probe window size (if remote window size equals zero)
     if (0 == rmt_wnd)
     {
       if (0 == probe_wait)
       {
-        probe_wait = IKCP_PROBE_INIT;
+        probe_wait = IKCP_PROBE_INIT * unit;
         ts_probe = current + probe_wait;
       } else if (_itimediff(current, ts_probe) >= 0)
       {
-        if (probe_wait < IKCP_PROBE_INIT)
+        if (probe_wait < IKCP_PROBE_INIT * unit)
         {
-          probe_wait = IKCP_PROBE_INIT;
+          probe_wait = IKCP_PROBE_INIT * unit;
         }
         probe_wait += probe_wait / 2;
-        if (probe_wait > IKCP_PROBE_LIMIT)
+        if (probe_wait > IKCP_PROBE_LIMIT * unit)
         {
-          probe_wait = IKCP_PROBE_LIMIT;
+          probe_wait = IKCP_PROBE_LIMIT * unit;
         }
         ts_probe = current + probe_wait;
         probe |= IKCP_ASK_SEND;
@@ -683,27 +1370,22 @@ public class Kcp
       seg.cmd = IKCP_CMD_WASK;
       if (offset + IKCP_OVERHEAD > mtu)
       {
-        this.output.out(buffer, this, user);
+        emit();
         offset = 0;
-        buffer = PooledByteBufAllocator.DEFAULT.buffer((mtu + IKCP_OVERHEAD) * 3);
       }
       offset += seg.encode(buffer);
+      segs++;
     }
     probe = 0;
     // calculate window size
     int cwnd_ = Math.min(snd_wnd, rmt_wnd);
     if (0 == nocwnd)
     {
-      cwnd_ = Math.min(cwnd, cwnd_);
+      cwnd_ = Math.min(congestion.window(), cwnd_);
     }
-    count = 0;
-    for (Segment snd_queue1 : snd_queue)
+    while (!snd_queue.isEmpty() && _itimediff(snd_nxt, snd_una + cwnd_) < 0)
     {
-      if (_itimediff(snd_nxt, snd_una + cwnd_) >= 0)
-      {
-        break;
-      }
-      Segment newseg = snd_queue1;
+      Segment newseg = snd_queue.removeFirst();
       newseg.conv = conv;
       newseg.cmd = IKCP_CMD_PUSH;
       newseg.wnd = seg.wnd;
@@ -714,42 +1396,32 @@ public class Kcp
       newseg.rto = rx_rto;
       newseg.fastack = 0;
       newseg.xmit = 0;
-      snd_buf.add(newseg);
+      snd_buf.put(newseg);
       snd_nxt++;
-      count++;
-    }
-    if (0 < count)
-    {
-      for (int i = 0; i < count; i++)
-      {
-        snd_queue.removeFirst();
-      }
+      snd_unsent++;
     }
     // calculate resent
     int resent = fastresend;
     if (fastresend <= 0)
     {
-      resent = 0xffffffff;
+      resent = Integer.MAX_VALUE;
     }
     int rtomin = rx_rto >> 3;
     if (nodelay != 0)
     {
       rtomin = 0;
     }
-    // flush data segments
-    for (Segment segment : snd_buf)
+    // flush data segments: the retransmissions due, then the new ones
+    Segment segment;
+    while ((segment = resend.peek()) != null && _itimediff(cur, segment.due) >= 0)
     {
-      boolean needsend = false;
-      //int debug = _itimediff(cur, segment.resendts);
-      if (0 == segment.xmit)
+      if (this.pace_wait(cur, rate))
       {
-        needsend = true;
-        segment.xmit++;
-        segment.rto = rx_rto;
-        segment.resendts = cur + segment.rto + rtomin;
-      } else if (_itimediff(cur, segment.resendts) >= 0)
+        break;
+      }
+      resend.poll();
+      if (_itimediff(cur, segment.resendts) >= 0)
       {
-        needsend = true;
         segment.xmit++;
         xmit++;
         if (0 == nodelay)
@@ -760,79 +1432,66 @@ public class Kcp
           segment.rto += rx_rto / 2;
         }
         segment.resendts = cur + segment.rto;
-        lost = 1;
+        lost++;
       } else if (segment.fastack >= resent)
       {
-        needsend = true;
         segment.xmit++;
         segment.fastack = 0;
         segment.resendts = cur + segment.rto;
         change++;
+      } else
+      {
+        segment.due = segment.resendts;//fastresend changed
+        resend.add(segment);
+        continue;
       }
-      if (needsend)
+      segment.due = segment.resendts;
+      resend.add(segment);
+      offset = this.transmit(segment, seg.wnd, offset);
+      segs++;
+    }
+    for (; !paced && snd_sent != snd_nxt; snd_sent++)
+    {
+      segment = snd_buf.get(snd_sent);
+      if (segment == null)
       {
-        segment.ts = cur;
-        segment.wnd = seg.wnd;
-        segment.una = rcv_nxt;
-        int need = IKCP_OVERHEAD + segment.data.readableBytes();
-        if (offset + need >= mtu)
-        {
-          this.output.out(buffer, this, user);
-          buffer = PooledByteBufAllocator.DEFAULT.buffer((mtu + IKCP_OVERHEAD) * 3);
-          offset = 0;
-        }
-        offset += segment.encode(buffer);
-        if (segment.data.readableBytes() > 0)
-        {
-          offset += segment.data.readableBytes();
-          buffer.writeBytes(segment.data);
-        }
-        if (segment.xmit >= dead_link)
-        {
-          state = 0;
-        }
+        continue;
+      }
+      if (this.pace_wait(cur, rate))
+      {
+        break;
       }
+      segment.xmit++;
+      snd_unsent--;
+      segment.rto = rx_rto;
+      segment.resendts = cur + segment.rto + rtomin;
+      segment.due = segment.resendts;
+      resend.add(segment);
+      offset = this.transmit(segment, seg.wnd, offset);
+      segs++;
     }
     // flash remain segments
     if (offset > 0)
     {
-      this.output.out(buffer, this, user);
-      buffer = PooledByteBufAllocator.DEFAULT.buffer((mtu + IKCP_OVERHEAD) * 3);
+      emit();
     }
-    // update ssthresh
     if (change != 0)
     {
-      int inflight = snd_nxt - snd_una;
-      ssthresh = inflight / 2;
-      if (ssthresh < IKCP_THRESH_MIN)
-      {
-        ssthresh = IKCP_THRESH_MIN;
-      }
-      cwnd = ssthresh + resent;
-      incr = cwnd * mss;
+      congestion.onFastRetransmit(this, resent);
     }
     if (lost != 0)
     {
-      ssthresh = cwnd / 2;
-      if (ssthresh < IKCP_THRESH_MIN)
-      {
-        ssthresh = IKCP_THRESH_MIN;
-      }
-      cwnd = 1;
-      incr = mss;
-    }
-    if (cwnd < 1)
-    {
-      cwnd = 1;
-      incr = mss;
+      congestion.onTimeout(this);
     }
+    snmp.flush(segs, lost, change);
   }
 
   /**
    * update state (call it repeatedly, every 10ms-100ms), or you can ask
    * ikcp_check when to call it again (without ikcp_input/_send calling).
    *
-   * @param current current timestamp in millisec.
+   * @param current current timestamp in millisec, in microsec in high
+   * resolution.
    */
   public void update(long current)
   {
@@ -843,7 +1502,7 @@ public class Kcp
       ts_flush = this.current;
     }
     int slap = _itimediff(this.current, ts_flush);
-    if (slap >= 10000 || slap < -10000)
+    if (slap >= 10000 * unit || slap < -10000 * unit)
     {
       ts_flush = this.current;
       slap = 0;
@@ -856,6 +1515,9 @@ public class Kcp
         ts_flush = this.current + interval;
       }
       flush();
+    } else if (paced && _itimediff(this.current, ts_paced) >= 0)
+    {
+      flush();
     }
   }
 
@@ -879,7 +1541,7 @@ public class Kcp
     }
     int ts_flush_temp = this.ts_flush;
     int tm_packet = 0x7fffffff;
-    if (_itimediff(cur, ts_flush_temp) >= 10000 || _itimediff(cur, ts_flush_temp) < -10000)
+    if (_itimediff(cur, ts_flush_temp) >= 10000 * unit || _itimediff(cur, ts_flush_temp) < -10000 * unit)
     {
       ts_flush_temp = cur;
     }
@@ -888,17 +1550,25 @@ public class Kcp
       return cur;
     }
     int tm_flush = _itimediff(ts_flush_temp, cur);
-    for (Segment seg : snd_buf)
+    if (paced)
+    {
+      //the segments due are held back by the pacer until ts_paced
+      int tm_pace = _itimediff(ts_paced, cur);
+      return tm_pace <= 0 ? cur : cur + Math.min(tm_pace, tm_flush);
+    }
+    if (snd_sent != snd_nxt)
     {
-      int diff = _itimediff(seg.resendts, cur);
+      return cur;
+    }
+    Segment seg = resend.peek();
+    if (seg != null)
+    {
+      int diff = _itimediff(seg.due, cur);
       if (diff <= 0)
       {
         return cur;
       }
-      if (diff < tm_packet)
-      {
-        tm_packet = diff;
-      }
+      tm_packet = diff;
     }
     int minimal = tm_packet < tm_flush ? tm_packet : tm_flush;
     if (minimal >= interval)
@@ -908,6 +1578,56 @@ public class Kcp
     return cur + minimal;
   }
 
+  /**
+   * high resolution: the times given to update and check are microsec (e.g.
+   * System.nanoTime() / 1000) instead of millisec, so that rtts below 1ms are
+   * measured and srtt, rttvar and rto follow them. the configuration stays in
+   * millisec. the peer only echoes the ts of the segments, it needs not be in
+   * the same mode. int microsec wrap in 71 minutes, the differences used stay
+   * right. only before the first update
+   *
+   * @param highResolution
+   * @return -1 after the first update
+   */
+  public int setHighResolution(boolean highResolution)
+  {
+    if (updated != 0)
+    {
+      return -1;
+    }
+    int u = highResolution ? IKCP_UNIT_US : 1;
+    rx_rto = rx_rto / unit * u;
+    rx_minrto = rx_minrto / unit * u;
+    interval = interval / unit * u;
+    unit = u;
+    return 0;
+  }
+
+  public boolean isHighResolution()
+  {
+    return unit != 1;
+  }
+
+  /**
+   * time units per ms: 1, or {@link #IKCP_UNIT_US} in high resolution
+   *
+   * @return
+   */
+  public int getUnit()
+  {
+    return unit;
+  }
+
+  /**
+   * minimum rto in ms, after noDelay which sets it to 30 (nodelay) or 100
+   *
+   * @param minrto
+   */
+  public void setMinRto(int minrto)
+  {
+    this.rx_minrto = Math.max(1, minrto) * unit;
+  }
+
   /**
    * change MTU size, default is 1400
    *
@@ -946,7 +1666,7 @@ public class Kcp
     {
       interval = 10;
     }
-    this.interval = interval;
+    this.interval = interval * unit;
     return 0;
   }
 
@@ -969,10 +1689,10 @@ public class Kcp
       this.nodelay = nodelay;
       if (nodelay != 0)
       {
-        rx_minrto = IKCP_RTO_NDL;
+        rx_minrto = IKCP_RTO_NDL * unit;
       } else
       {
-        rx_minrto = IKCP_RTO_MIN;
+        rx_minrto = IKCP_RTO_MIN * unit;
       }
     }
     if (interval >= 0)
@@ -984,7 +1704,7 @@ public class Kcp
       {
         interval = 10;
       }
-      this.interval = interval;
+      this.interval = interval * unit;
     }
     if (resend >= 0)
     {
@@ -1027,11 +1747,170 @@ public class Kcp
     return snd_buf.size() + snd_queue.size();
   }
 
+  /**
+   * nothing for flush to do: no data waiting or in flight, no pending ack or
+   * probe. update can then wait for the next input or send instead of the
+   * time returned by check
+   *
+   * @return
+   */
+  public boolean isIdle()
+  {
+    return snd_queue.isEmpty() && snd_buf.isEmpty() && ackcount == 0 && probe == 0 && rmt_wnd != 0;
+  }
+
+  /**
+   * payload bytes held by snd_queue, snd_buf, rcv_buf and rcv_queue
+   *
+   * @return
+   */
+  public int bytesBuffered()
+  {
+    return buffered;
+  }
+
+  /**
+   * release every segment and the output buffer, the kcp is unusable
+   * afterwards
+   */
+  public void release()
+  {
+    Segment seg;
+    while ((seg = snd_queue.poll()) != null)
+    {
+      free(seg);
+    }
+    resend.clear();
+    while ((seg = snd_buf.removeFirst()) != null)
+    {
+      free(seg);
+    }
+    snd_unsent = 0;
+    snd_sent = snd_nxt;
+    while ((seg = rcv_buf.removeFirst()) != null)
+    {
+      free(seg);
+    }
+    while ((seg = rcv_queue.poll()) != null)
+    {
+      free(seg);
+    }
+    ackcount = 0;
+    if (buffer != null)
+    {
+      buffer.release();
+      buffer = null;
+    }
+    this.publish();
+    snmp.retire();
+  }
+
+  /**
+   * let segments reference slices of the user buffers and input datagrams
+   * instead of copies. received messages are then read with receive(), output
+   * datagrams are CompositeByteBuf of headers and payloads
+   *
+   * @param zeroCopy
+   */
+  public void setZeroCopy(boolean zeroCopy)
+  {
+    this.zeroCopy = zeroCopy;
+  }
+
+  public boolean isZeroCopy()
+  {
+    return zeroCopy;
+  }
+
+  /**
+   * stream mode: small sends are coalesced into full segments and every
+   * receive returns all the bytes received so far, there are no message
+   * boundaries. both ends should agree, set before the first send
+   *
+   * @param stream
+   */
+  public void setStream(boolean stream)
+  {
+    this.stream = stream;
+  }
+
+  public boolean isStream()
+  {
+    return stream;
+  }
+
   public void setNextUpdate(int nextUpdate)
   {
     this.nextUpdate = nextUpdate;
   }
 
+  /**
+   * pace the data segments of flush instead of sending the whole window at
+   * once: a token budget refilled at the rate (at most
+   * {@link #IKCP_PACE_BURST} ms of it) is spent by every data segment, the
+   * segments left are sent by the next update, check returns that time. acks
+   * and probes are never held back
+   *
+   * @param rate bytes/s; 0 follows the pacing rate of the congestion
+   * controller, or the window per rtt when it has none; -1 (default) disables
+   */
+  public void setPacing(long rate)
+  {
+    this.pacing = rate;
+    this.paced = false;
+    this.pace_budget = 0;
+    this.ts_pace = current;
+  }
+
+  public long getPacing()
+  {
+    return pacing;
+  }
+
+  /**
+   * the current pacing rate, bytes/s
+   */
+  private long pace_rate()
+  {
+    if (pacing > 0)
+    {
+      return pacing;
+    }
+    long rate = congestion.pacingRate();
+    if (rate > 0)
+    {
+      return rate;
+    }
+    int wnd = Math.min(snd_wnd, rmt_wnd);
+    if (nocwnd == 0)
+    {
+      wnd = Math.min(congestion.window(), wnd);
+    }
+    int rtt = rx_srtt > 0 ? rx_srtt : interval;
+    return (long) Math.max(wnd, 1) * mss * 1000 * unit / rtt;
+  }
+
+  /**
+   * counters of this kcp, readable from any thread
+   *
+   * @return
+   */
+  public Snmp getSnmp()
+  {
+    return snmp;
+  }
+
+  /**
+   * make the counters of {@link #getSnmp()} visible to other threads, once per
+   * update by the thread updating this kcp
+   */
+  public void publish()
+  {
+    int us = IKCP_UNIT_US / unit;
+    snmp.state(rx_srtt * us, rx_rttval * us, rx_rto * us, congestion.window(), congestion.ssthresh(), rmt_wnd);
+    snmp.publish();
+  }
+
   public int getNextUpdate()
   {
     return nextUpdate;
@@ -1042,6 +1921,107 @@ public class Kcp
     return user;
   }
 
+  /**
+   * the peer moved, e.g. nat rebinding, output goes to the new user from now
+   *
+   * @param user
+   */
+  public void setUser(Object user)
+  {
+    this.user = user;
+  }
+
+  public int getConv()
+  {
+    return conv;
+  }
+
+  /**
+   * congestion control of this kcp, {@link CongestionController.Reno} by
+   * default. not used while nc=1 in noDelay
+   *
+   * @param congestion
+   */
+  public void setCongestionController(CongestionController congestion)
+  {
+    this.congestion = congestion;
+  }
+
+  public CongestionController getCongestionController()
+  {
+    return congestion;
+  }
+
+  public int getMss()
+  {
+    return mss;
+  }
+
+  public int getRmtWnd()
+  {
+    return rmt_wnd;
+  }
+
+  public int getSndWnd()
+  {
+    return snd_wnd;
+  }
+
+  /**
+   * segments sent and not yet acknowledged, not counting those held back by
+   * the pacer
+   *
+   * @return
+   */
+  public int getInflight()
+  {
+    return snd_nxt - snd_una - snd_unsent;
+  }
+
+  /**
+   * delivery rate in bytes/s: the largest over the segments acknowledged by
+   * the current input of the bytes delivered between sending and acking a
+   * segment divided by that time. for {@link CongestionController#onAck}
+   *
+   * @return
+   */
+  public long getDeliveryRate()
+  {
+    return deliveryRate;
+  }
+
+  /**
+   * new data segments taken into the receive window so far, wraps. an input
+   * that changes it carried data the peer could only send inside the session
+   *
+   * @return
+   */
+  public int getAccepted()
+  {
+    return accepted;
+  }
+
+  /**
+   * smoothed rtt in time units (see {@link #getUnit()}), 0 before the first
+   * sample
+   *
+   * @return
+   */
+  public int getSrtt()
+  {
+    return rx_srtt;
+  }
+
+  /**
+   * time of the last update, in time units
+   *
+   * @return
+   */
+  public int getCurrent()
+  {
+    return current;
+  }
+
   @Override
   public String toString()
   {
@@ -16,7 +16,7 @@ public interface KcpListerner
   /**
    * kcp message
    *
-   * @param bb the data
+   * @param bb the data,由实现方释放
    * @param kcp
    */
   public void handleReceive(ByteBuf bb, KcpOnUdp kcp);
@@ -0,0 +1,312 @@
+/**
+ * 直接在netty的EventLoop上运行kcp
+ */
+package org.beykery.jkcp;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.EventLoop;
+import io.netty.channel.socket.DatagramChannel;
+import io.netty.channel.socket.DatagramPacket;
+import io.netty.util.concurrent.FastThreadLocal;
+import io.netty.util.internal.PlatformDependent;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * runs the sessions of one channel on the event loop of that channel: input,
+ * update and flush happen inline, timers are EventLoop.schedule. everything
+ * but wakeup and close is called on the event loop
+ *
+ * @author beykery
+ */
+class KcpLoop implements Worker
+{
+
+  private static final FastThreadLocal<KcpLoop> CURRENT = new FastThreadLocal<>();//of the event loop thread
+  final KcpServer server;
+  private final DatagramChannel channel;
+  private final EventLoop loop;
+  private final ConvMap kcps;//by conv
+  private final Snmp snmp = new Snmp(true);//closed sessions, written by this worker only
+  private final WorkerMetrics metrics = new WorkerMetrics(snmp);
+  private final Clock.Cached clock;//ticked on every entry of the loop
+  private final ArrayDeque<KcpOnUdp> ready;//sessions to update after this read
+  private final Queue<KcpOnUdp> wakeups;//sessions with new data to send, each at most once
+  private final AtomicBoolean draining;//drain task submitted
+  private final Runnable drain;
+  private boolean written;//written since the last flush
+  private long arrival;//nanoTime of the first datagram of this read, 0 none
+  private int batch;//datagrams of this read
+
+  /**
+   * loop
+   *
+   * @param server
+   * @param channel
+   * @param source
+   */
+  KcpLoop(KcpServer server, DatagramChannel channel, Clock source)
+  {
+    this.server = server;
+    this.channel = channel;
+    this.clock = new Clock.Cached(source);
+    this.loop = channel.eventLoop();
+    this.kcps = new ConvMap(1024);
+    this.ready = new ArrayDeque<>();
+    this.wakeups = PlatformDependent.newMpscQueue();
+    this.draining = new AtomicBoolean();
+    this.loop.execute(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        CURRENT.set(KcpLoop.this);
+      }
+    });
+    this.drain = new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        draining.set(false);
+        clock.tick();
+        KcpOnUdp ku;
+        while ((ku = wakeups.poll()) != null)
+        {
+          ku.clearSignal();
+          if (!ku.isClosed())
+          {
+            update(ku);
+          }
+        }
+        flush();
+      }
+    };
+  }
+
+  /**
+   * 收到输入,在本次读结束时更新. the datagram holds at least the conv
+   *
+   * @param dp
+   */
+  void input(DatagramPacket dp)
+  {
+    if (this.arrival == 0)
+    {
+      this.arrival = System.nanoTime();
+      this.clock.tick();
+    }
+    this.batch++;
+    ByteBuf content = dp.content();
+    int conv = content.getInt(content.readerIndex());
+    KcpOnUdp ku = this.kcps.get(conv);
+    if (ku == null)
+    {
+      if (this.server.isHandshake() && (content.readableBytes() != Cookie.SIZE || content.getByte(content.readerIndex() + 4) != Cookie.CMD_ECHO))
+      {
+        dp.release();
+        return;
+      }
+      ku = this.server.newSession(dp.sender(), conv);
+      ku.setWorker(this);
+      this.kcps.put(conv, ku);
+      this.server.admit(conv);
+    }
+    ku.input(content, this.arrival, dp.sender());
+    if (!ku.ready)
+    {
+      ku.ready = true;
+      this.ready.add(ku);
+    }
+  }
+
+  /**
+   * 一次读结束
+   */
+  void readComplete()
+  {
+    long start = this.arrival != 0 ? this.arrival : System.nanoTime();
+    this.metrics.queue.record(this.batch);
+    this.arrival = 0;
+    this.batch = 0;
+    KcpOnUdp ku;
+    while ((ku = this.ready.poll()) != null)
+    {
+      ku.ready = false;
+      this.update(ku);
+    }
+    this.flush();
+    this.metrics.sessions.record(this.kcps.size());
+    this.metrics.tick.record(System.nanoTime() - start);
+  }
+
+  @Override
+  public Snmp getSnmp()
+  {
+    return snmp;
+  }
+
+  @Override
+  public WorkerMetrics getMetrics()
+  {
+    return metrics;
+  }
+
+  @Override
+  public Clock getClock()
+  {
+    return clock;
+  }
+
+  @Override
+  public void wakeup(KcpOnUdp ku)
+  {
+    this.wakeups.offer(ku);
+    if (this.draining.compareAndSet(false, true))
+    {
+      this.loop.execute(this.drain);
+    }
+  }
+
+  /**
+   * 输出,不flush
+   *
+   * @param dp
+   */
+  void write(DatagramPacket dp)
+  {
+    this.channel.write(dp, this.channel.voidPromise());
+    this.written = true;
+  }
+
+  /**
+   * add a session initiated by this end, may be called from any thread
+   *
+   * @param ku
+   */
+  void register(final KcpOnUdp ku)
+  {
+    ku.setWorker(this);
+    this.loop.execute(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        clock.tick();
+        kcps.put(ku.getKcp().getConv(), ku);
+        update(ku);
+        flush();
+      }
+    });
+  }
+
+  /**
+   * the loop running on the calling thread, null on other threads
+   *
+   * @return
+   */
+  static KcpLoop current()
+  {
+    return CURRENT.get();
+  }
+
+  /**
+   * 释放全部会话,可在任意线程调用
+   */
+  void close()
+  {
+    this.loop.execute(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        for (KcpOnUdp ku : kcps.values())
+        {
+          cancel(ku);
+          ku.release();
+        }
+        kcps.clear();
+        ready.clear();
+        if (CURRENT.get() == KcpLoop.this)
+        {
+          CURRENT.remove();
+        }
+      }
+    });
+  }
+
+  private void update(KcpOnUdp ku)
+  {
+    long t = System.nanoTime();
+    ku.update();
+    this.metrics.update.record(System.nanoTime() - t);
+    if (ku.isClosed())
+    {
+      this.cancel(ku);
+      this.kcps.remove(ku.getKcp().getConv());
+      this.server.revoke(ku.getKcp().getConv());
+      ku.release();
+      return;
+    }
+    long next = ku.nextWakeup();
+    if (next != Long.MAX_VALUE && (ku.timerDeadline == Long.MAX_VALUE || next < ku.timerDeadline))
+    {
+      this.schedule(ku, next);
+    }
+  }
+
+  /**
+   * timer at deadline, replaces the pending one of the session so that at
+   * most one task per session waits in the scheduled queue of the loop
+   *
+   * @param ku
+   * @param deadline
+   */
+  private void schedule(final KcpOnUdp ku, long deadline)
+  {
+    this.cancel(ku);
+    ku.timerDeadline = deadline;
+    ku.timer = this.loop.schedule(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        ku.timer = null;
+        ku.timerDeadline = Long.MAX_VALUE;
+        if (ku.isClosed())
+        {
+          return;
+        }
+        clock.tick();
+        update(ku);
+        flush();
+      }
+    }, Math.max(0, deadline - this.clock.millis()), TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * remove the pending timer of ku from the loop
+   *
+   * @param ku
+   */
+  private void cancel(KcpOnUdp ku)
+  {
+    if (ku.timer != null)
+    {
+      ku.timer.cancel(false);
+      ku.timer = null;
+      ku.timerDeadline = Long.MAX_VALUE;
+    }
+  }
+
+  private void flush()
+  {
+    if (this.written)
+    {
+      this.written = false;
+      this.channel.flush();
+    }
+  }
+}
@@ -5,11 +5,16 @@ package org.beykery.jkcp;
 
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.util.internal.PlatformDependent;
+import java.net.InetSocketAddress;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
 import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.Map;
 import java.util.Queue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -21,8 +26,18 @@ public class KcpOnUdp
 {
 
   private static final Logger LOG = LoggerFactory.getLogger(KcpOnUdp.class);
+  private static final AtomicInteger CONVS = new AtomicInteger();//conv allocator, permuted
+  private static final int[] CONV_KEYS = new int[4];//rounds of the conv permutation
+  private static final AtomicIntegerFieldUpdater<KcpOnUdp> SIGNALED = AtomicIntegerFieldUpdater.newUpdater(KcpOnUdp.class, "signaled");
+  private static final AtomicIntegerFieldUpdater<KcpOnUdp> DRAINING = AtomicIntegerFieldUpdater.newUpdater(KcpOnUdp.class, "draining");
+  public static final int SEND_CAPACITY = 1 << 12;//待发送的最大消息数
+  public static final long HANDSHAKE_INTERVAL = 200;//ms between handshake retries
   private final Kcp kcp;//kcp的状态
+  private final Output out;
+  private Fec fec;
+  private int mtu = Kcp.IKCP_MTU_DEF;//of the datagrams, kcp gets less with fec
   private final Queue<ByteBuf> received;//输入
+  private final Queue<InetSocketAddress> senders;//of received
   private final Queue<ByteBuf> sendList;
   private long timeout;//超时设定
   private long lastTime;//上次超时检查时间
@@ -31,6 +46,33 @@ public class KcpOnUdp
   private volatile boolean closed;
   private String sessionId;
   private final Map<Object, Object> session;
+  Worker worker;//owner
+  private Clock clock = Clock.SYSTEM;
+  private volatile int signaled;//already in the wakeup queue of worker
+  private volatile int draining;//sendList of the closed session is being released
+  private int drainLimit = Integer.MAX_VALUE;//max messages taken from sendList per update
+  boolean ready;//in the ready list of worker
+  long wheelTick = -1;//scheduled tick in the timer wheel of worker
+  private long arrival;//nanoTime the oldest input not yet handled reached the worker, 0 none
+  KcpOnUdp wheelPrev;
+  KcpOnUdp wheelNext;
+  long timerDeadline = Long.MAX_VALUE;//of timer
+  ScheduledFuture<?> timer;//pending timer on a KcpLoop, null none
+  private byte handshake;//handshake command to send until answered, 0 once established
+  private long handshakeToken;
+  private long handshakeTime;//next handshake datagram
+  private Cookie cookie;//proves a new address of the peer before rebinding, null without handshake
+  private long rebindTime;//next cookie to a new address of the peer
+
+  static
+  {
+    SecureRandom random = new SecureRandom();
+    CONVS.set(random.nextInt());
+    for (int i = 0; i < CONV_KEYS.length; i++)
+    {
+      CONV_KEYS[i] = random.nextInt();
+    }
+  }
 
   /**
    * fastest: ikcp_nodelay(kcp, 1, 20, 2, 1) nodelay: 0:disable(default),
@@ -66,34 +108,214 @@ public class KcpOnUdp
    */
   public void setMtu(int mtu)
   {
-    this.kcp.setMtu(mtu);
+    this.mtu = mtu;
+    this.kcp.setMtu(this.fec == null ? mtu : mtu - Fec.OVERHEAD);
   }
 
   /**
-   * kcp for udp
+   * congestion control of this session, see {@link CongestionController}
+   *
+   * @param congestion
+   */
+  public void setCongestionController(CongestionController congestion)
+  {
+    this.kcp.setCongestionController(congestion);
+  }
+
+  /**
+   * reed solomon fec under kcp, see {@link Fec}: every dataShards datagrams are
+   * followed by parityShards parity datagrams. both ends need the same
+   * setting, 0 disables
+   *
+   * @param dataShards
+   * @param parityShards
+   */
+  public void setFec(int dataShards, int parityShards)
+  {
+    Fec old = this.fec;
+    this.fec = dataShards > 0 && parityShards > 0 ? new Fec(this.kcp.getConv(), dataShards, parityShards) : null;
+    if (old != null || this.fec != null)
+    {
+      this.setMtu(this.mtu);
+    }
+  }
+
+  /**
+   * zero copy: sent data is fragmented into slices of the user buffer and
+   * output as composite datagrams, received messages are slices of the
+   * datagrams, delivered as CompositeByteBuf when they span several segments
+   *
+   * @param zeroCopy
+   */
+  public void setZeroCopy(boolean zeroCopy)
+  {
+    this.kcp.setZeroCopy(zeroCopy);
+  }
+
+  /**
+   * stream mode: small messages are coalesced into full segments and
+   * handleReceive gets the bytes received so far instead of messages, see
+   * {@link Kcp#setStream(boolean)}
+   *
+   * @param stream
+   */
+  public void setStream(boolean stream)
+  {
+    this.kcp.setStream(stream);
+  }
+
+  /**
+   * spread the segments of each flush over time instead of sending the window
+   * at once, the worker updates the session again when the pacer allows more,
+   * see {@link Kcp#setPacing(long)}
+   *
+   * @param rate bytes/s, 0 follows the congestion controller, -1 disables
+   */
+  public void setPacing(long rate)
+  {
+    this.kcp.setPacing(rate);
+  }
+
+  /**
+   * microsec times for the kcp, from {@link Clock#micros()}, for rtts below
+   * 1ms. the worker still wakes the session at most every ms. see
+   * {@link Kcp#setHighResolution(boolean)}, before the first update
+   *
+   * @param highResolution
+   */
+  public void setHighResolution(boolean highResolution)
+  {
+    this.kcp.setHighResolution(highResolution);
+  }
+
+  /**
+   * minimum rto in ms, after noDelay
+   *
+   * @param minrto
+   */
+  public void setMinRto(int minrto)
+  {
+    this.kcp.setMinRto(minrto);
+  }
+
+  /**
+   * kcp for udp with a newly allocated conv
    *
    * @param out
    * @param user
    * @param listerner
    */
   public KcpOnUdp(Output out, Object user, KcpListerner listerner)
+  {
+    this(out, user, listerner, allocateConv());
+  }
+
+  /**
+   * kcp for udp
+   *
+   * @param out
+   * @param user
+   * @param listerner
+   * @param conv the conv of the peer for an accepted session, see
+   * {@link #allocateConv()} for an initiated one
+   */
+  public KcpOnUdp(Output out, Object user, KcpListerner listerner, int conv)
   {
     this.listerner = listerner;
-    kcp = new Kcp(121106, out, user);
-    received = new LinkedList<>();
-    sendList = new LinkedBlockingQueue<>();
+    this.out = out;
+    kcp = new Kcp(conv, new Output()
+    {
+      @Override
+      public void out(ByteBuf msg, Kcp kcp, Object user)
+      {
+        if (fec != null)
+        {
+          fec.encode(msg, kcp, user, KcpOnUdp.this.out);
+        } else
+        {
+          KcpOnUdp.this.out.out(msg, kcp, user);
+        }
+      }
+    }, user);
+    received = new ArrayDeque<>();
+    senders = new ArrayDeque<>();
+    sendList = PlatformDependent.newFixedMpscQueue(SEND_CAPACITY);
     this.session = new HashMap<>();
+    this.lastTime = this.clock.millis();
+  }
+
+  /**
+   * a new conv, unique in this process until 2^32 sessions were allocated: a
+   * counter through a permutation with secret random keys, so that the convs
+   * of live sessions can not be guessed from another one, and restarted or
+   * different clients of one server are unlikely to collide
+   *
+   * @return
+   */
+  public static int allocateConv()
+  {
+    int x = CONVS.getAndIncrement();
+    int l = x >>> 16;
+    int r = x & 0xffff;
+    for (int k : CONV_KEYS)
+    {
+      int h = (r ^ k) * 0x85ebca6b;
+      h ^= h >>> 13;
+      h *= 0xc2b2ae35;
+      h ^= h >>> 16;
+      int t = l ^ (h & 0xffff);
+      l = r;
+      r = t;
+    }
+    return (l << 16) | r;
   }
 
   /**
-   * send data to addr
+   * send data to addr, bb is released once it has been handed to kcp. may be
+   * called from any thread
    *
    * @param bb
+   * @return false if closed or too many messages are waiting, bb is then
+   * released at once
    */
-  public void send(ByteBuf bb)
+  public boolean send(ByteBuf bb)
   {
-    this.sendList.add(bb);
+    if (this.closed || !this.sendList.offer(bb))
+    {
+      bb.release();
+      return false;
+    }
+    if (this.closed)//released meanwhile, nobody else takes bb
+    {
+      this.drain();
+      return false;
+    }
     this.needUpdate = true;
+    if (this.worker != null && SIGNALED.compareAndSet(this, 0, 1))
+    {
+      this.worker.wakeup(this);
+    }
+    return true;
+  }
+
+  /**
+   * the worker took this session from its wakeup queue, a later send has to
+   * signal again
+   */
+  void clearSignal()
+  {
+    this.signaled = 0;
+  }
+
+  /**
+   * max messages handed to kcp per update, so that one busy sender does not
+   * hold the worker
+   *
+   * @param drainLimit
+   */
+  void setDrainLimit(int drainLimit)
+  {
+    this.drainLimit = drainLimit;
   }
 
   /**
@@ -104,65 +326,334 @@ public class KcpOnUdp
    */
   void update()
   {
+    long now = this.clock.millis();
+    int cur = (int) (kcp.isHighResolution() ? this.clock.micros() : now);
     //send
-    while (!this.sendList.isEmpty())
+    ByteBuf bb;
+    for (int i = 0; i < this.drainLimit && (bb = sendList.poll()) != null; i++)
     {
-      ByteBuf bb = sendList.remove();
       this.kcp.send(bb);
+      bb.release();
+    }
+    if (!this.sendList.isEmpty() && this.worker != null && SIGNALED.compareAndSet(this, 0, 1))
+    {
+      this.worker.wakeup(this);//the rest in the next round
     }
     //input
-    while (!this.received.isEmpty())
+    kcp.setCurrent(cur);
+    ByteBuf dp;
+    while ((dp = this.received.poll()) != null)
     {
-      ByteBuf dp = this.received.remove();
-      kcp.input(dp);
+      InetSocketAddress from = this.senders.poll();
+      if (from != null && from.equals(kcp.getUser()))
+      {
+        from = null;
+      }
+      if (dp.readableBytes() == Cookie.SIZE && Cookie.isHandshake(dp.getByte(dp.readerIndex() + 4)))
+      {
+        this.onHandshake(dp, from);
+      } else if (this.handshake == 0)
+      {
+        int accepted = kcp.getAccepted();
+        if (this.fec != null)
+        {
+          this.fec.decode(dp, kcp);
+        } else
+        {
+          kcp.input(dp);
+        }
+        if (from != null)
+        {
+          this.moved(from, kcp.getAccepted() != accepted, now);
+        }
+      }
+      dp.release();
     }
     //receive
-    int len;
-    while ((len = kcp.peekSize()) > 0)
+    if (kcp.isZeroCopy())
     {
-      ByteBuf bb = PooledByteBufAllocator.DEFAULT.buffer(len);
-      int n = kcp.receive(bb);
-      if (n > 0)
+      while ((bb = kcp.receive()) != null)
       {
-        this.lastTime = System.currentTimeMillis();
-        this.listerner.handleReceive(bb, this);
-      } else
+        this.lastTime = now;
+        this.deliver(bb);
+      }
+    } else
+    {
+      int len;
+      while ((len = kcp.peekSize()) > 0)
       {
-        bb.release();
+        bb = PooledByteBufAllocator.DEFAULT.buffer(len);
+        int n = kcp.receive(bb);
+        if (n > 0)
+        {
+          this.lastTime = now;
+          this.deliver(bb);
+        } else
+        {
+          bb.release();
+        }
       }
     }
+    this.arrival = 0;
     //update kcp status
-    int cur = (int) System.currentTimeMillis();
-    if (this.needUpdate || cur >= kcp.getNextUpdate())
+    if (this.handshake != 0)
+    {
+      if (now >= this.handshakeTime)
+      {
+        this.output(this.handshake, this.handshakeToken);
+        this.handshakeTime = now + HANDSHAKE_INTERVAL;
+      }
+    } else if (this.needUpdate || cur - kcp.getNextUpdate() >= 0)
     {
       kcp.update(cur);
       kcp.setNextUpdate(kcp.check(cur));
       this.needUpdate = false;
     }
+    kcp.publish();
     //check timeout
-    if (this.timeout > 0 && System.currentTimeMillis() - this.lastTime > this.timeout)
+    if (this.timeout > 0 && now - this.lastTime > this.timeout)
     {
       this.closed = true;
       this.listerner.handleClose(this);
     }
   }
 
+  /**
+   * 握手消息,ECHO的token已在io线程校验
+   *
+   * @param bb
+   */
+  private void onHandshake(ByteBuf bb, InetSocketAddress from)
+  {
+    byte cmd = bb.getByte(bb.readerIndex() + 4);
+    long token = bb.getLong(bb.readerIndex() + 5);
+    switch (cmd)
+    {
+      case Cookie.CMD_COOKIE:
+        if (this.handshake == Cookie.CMD_HELLO)
+        {
+          this.handshake = Cookie.CMD_ECHO;
+          this.handshakeToken = token;
+          this.handshakeTime = 0;
+        } else if (this.handshake == 0 && from == null)//our address changed, see moved
+        {
+          this.output(Cookie.CMD_ECHO, token);
+        }
+        break;
+      case Cookie.CMD_ECHO://also when the last ACCEPT was lost
+        if (from != null)
+        {
+          if (this.cookie == null || !this.cookie.verify(from, this.kcp.getConv(), token))
+          {
+            break;
+          }
+          this.kcp.setUser(from);//the new address echoed its cookie
+        }
+        this.output(Cookie.CMD_ACCEPT, token);
+        break;
+      case Cookie.CMD_ACCEPT:
+        if (this.handshake == Cookie.CMD_ECHO)
+        {
+          this.handshake = 0;
+          this.needUpdate = true;
+          this.lastTime = this.clock.millis();
+        }
+        break;
+      default:
+        break;
+    }
+  }
+
+  private void output(byte cmd, long token)
+  {
+    this.out.out(Cookie.encode(this.kcp.getConv(), cmd, token), this.kcp, this.kcp.getUser());
+  }
+
+  /**
+   * a datagram of this conv came from another address than the peer's, e.g.
+   * nat rebinding, or a spoofed one. without handshake the session moves to it
+   * only if the datagram carried new data of the receive window. with
+   * handshake the new address gets a cookie (at most one per
+   * HANDSHAKE_INTERVAL) and the session moves once it is echoed from there
+   *
+   * @param from
+   * @param accepted
+   * @param now
+   */
+  private void moved(InetSocketAddress from, boolean accepted, long now)
+  {
+    if (this.cookie != null)
+    {
+      if (now >= this.rebindTime)
+      {
+        this.rebindTime = now + HANDSHAKE_INTERVAL;
+        int conv = this.kcp.getConv();
+        this.out.out(Cookie.encode(conv, Cookie.CMD_COOKIE, this.cookie.token(from, conv)), this.kcp, from);
+      }
+    } else if (accepted)
+    {
+      this.kcp.setUser(from);
+    }
+  }
+
+  /**
+   * tokens for moving the session to a new address of the peer, see moved
+   *
+   * @param cookie
+   */
+  void setCookie(Cookie cookie)
+  {
+    this.cookie = cookie;
+  }
+
+  /**
+   * start the handshake of an initiated session, data is held back until the
+   * peer accepted
+   */
+  void handshake()
+  {
+    this.handshake = Cookie.CMD_HELLO;
+    this.handshakeTime = 0;
+    this.needUpdate = true;
+  }
+
+  /**
+   * 下次需要update的时间,Long.MAX_VALUE表示只等输入或发送
+   *
+   * @return
+   */
+  long nextWakeup()
+  {
+    long now = this.clock.millis();
+    long next = Long.MAX_VALUE;
+    if (this.handshake != 0)
+    {
+      next = Math.max(now, this.handshakeTime);
+    } else if (this.needUpdate || !kcp.isIdle())
+    {
+      int unit = kcp.getUnit();
+      int cur = (int) (unit == 1 ? now : this.clock.micros());
+      next = now + (Math.max(0, kcp.getNextUpdate() - cur) + unit - 1) / unit;
+    }
+    if (this.timeout > 0)
+    {
+      next = Math.min(next, this.lastTime + this.timeout + 1);
+    }
+    return next;
+  }
+
+  /**
+   * the worker running this session, before it runs
+   *
+   * @param worker
+   */
+  void setWorker(Worker worker)
+  {
+    this.worker = worker;
+    this.kcp.getSnmp().setParent(worker.getSnmp());
+    this.clock = worker.getClock();
+  }
+
+  /**
+   * the time of this session, the cached clock of its worker once it runs in
+   * one, {@link Clock#SYSTEM} before. set a {@link Clock.Virtual} to drive a
+   * session by hand faster than real time
+   *
+   * @param clock
+   */
+  public void setClock(Clock clock)
+  {
+    this.clock = clock;
+    this.lastTime = clock.millis();
+  }
+
   /**
    * 输入 只会在worker线程调用,不会多线程调用
    *
    * @param content
+   * @param arrival nanoTime the datagram reached the worker
+   * @param sender
    */
-  void input(ByteBuf content)
+  void input(ByteBuf content, long arrival, InetSocketAddress sender)
   {
     this.received.add(content);
+    this.senders.add(sender);
+    if (this.arrival == 0)
+    {
+      this.arrival = arrival;
+    }
     this.needUpdate = true;
   }
 
+  /**
+   * hand a message to the listener, the first one of an update records the
+   * latency since the arrival of its input
+   *
+   * @param bb
+   */
+  private void deliver(ByteBuf bb)
+  {
+    if (this.arrival != 0 && this.worker != null)
+    {
+      this.worker.getMetrics().latency.record(System.nanoTime() - this.arrival);
+      this.arrival = 0;
+    }
+    this.listerner.handleReceive(bb, this);
+  }
+
+  /**
+   * 释放全部缓冲,只在worker线程调用
+   */
+  void release()
+  {
+    this.closed = true;
+    this.drain();
+    ByteBuf bb;
+    while ((bb = this.received.poll()) != null)
+    {
+      bb.release();
+    }
+    this.senders.clear();
+    this.kcp.release();
+  }
+
+  /**
+   * release the waiting messages once closed. the worker and senders racing
+   * with release take turns as the single consumer of sendList, the one
+   * holding the turn looks again after giving it up
+   */
+  private void drain()
+  {
+    do
+    {
+      if (!DRAINING.compareAndSet(this, 0, 1))
+      {
+        return;
+      }
+      ByteBuf bb;
+      while ((bb = this.sendList.poll()) != null)
+      {
+        bb.release();
+      }
+      this.draining = 0;
+    } while (!this.sendList.isEmpty());
+  }
+
   public boolean isClosed()
   {
     return closed;
   }
 
+  /**
+   * payload bytes buffered by kcp for this session
+   *
+   * @return
+   */
+  public int bytesBuffered()
+  {
+    return this.kcp.bytesBuffered();
+  }
+
   public Kcp getKcp()
   {
     return kcp;
@@ -10,10 +10,24 @@ import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelPipeline;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollDatagramChannel;
+import io.netty.channel.epoll.EpollEventLoopGroup;
 import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.DatagramChannel;
 import io.netty.channel.socket.DatagramPacket;
 import io.netty.channel.socket.nio.NioDatagramChannel;
+import java.lang.management.ManagementFactory;
 import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -25,7 +39,8 @@ public abstract class KcpServer implements Output, KcpListerner
 {
 
   private static final Logger LOG = LoggerFactory.getLogger(KcpServer.class);
-  private final NioDatagramChannel channel;
+  private final DatagramChannel[] channels;//one per worker with SO_REUSEPORT, otherwise one
+  private final UdpHandler[] handlers;//of the channels
   private final InetSocketAddress addr;
   private int nodelay;
   private int interval = Kcp.IKCP_INTERVAL;
@@ -35,8 +50,25 @@ public abstract class KcpServer implements Output, KcpListerner
   private int rcvwnd = Kcp.IKCP_WND_RCV;
   private int mtu = Kcp.IKCP_MTU_DEF;
   private KcpThread[] workers;
+  private volatile KcpLoop[] loops;//event loop mode
+  private ObjectName[] mbeans;//of the workers
+  private boolean eventLoopMode;
   private boolean running;
   private long timeout;
+  private boolean zeroCopy;
+  private boolean stream;
+  private int dataShards;
+  private CongestionController.Factory congestion;
+  private long pacing = -1;
+  private boolean highResolution;
+  private int minRto;
+  private Clock clock = Clock.SYSTEM;
+  private int parityShards;
+  private int drainLimit = 1024;
+  private WaitStrategy waitStrategy = new WaitStrategy.TimedPark();
+  private Affinity affinity;
+  private Cookie cookie;//handshake
+  private ConcurrentHashMap<Integer, AtomicInteger> admitted;//live sessions per conv, with handshake
 
   /**
    * server
@@ -45,35 +77,70 @@ public abstract class KcpServer implements Output, KcpListerner
    * @param workerSize
    */
   public KcpServer(int port, int workerSize)
+  {
+    this(port, workerSize, false);
+  }
+
+  /**
+   * server
+   *
+   * @param port
+   * @param workerSize
+   * @param reusePort bind one epoll channel per worker on the same port with
+   * SO_REUSEPORT, the kernel then spreads the flows over the workers. falls
+   * back to a single nio channel when epoll is not available
+   */
+  public KcpServer(int port, int workerSize, boolean reusePort)
   {
     if (port <= 0 || workerSize <= 0)
     {
       throw new IllegalArgumentException("参数非法");
     }
     this.workers = new KcpThread[workerSize];
-    final NioEventLoopGroup nioEventLoopGroup = new NioEventLoopGroup();
+    final EventLoopGroup group;
     Bootstrap bootstrap = new Bootstrap();
-    bootstrap.channel(NioDatagramChannel.class);
-    bootstrap.group(nioEventLoopGroup);
-    bootstrap.handler(new ChannelInitializer<NioDatagramChannel>()
+    if (reusePort && Epoll.isAvailable())
     {
-
-      @Override
-      protected void initChannel(NioDatagramChannel ch) throws Exception
+      group = new EpollEventLoopGroup(workerSize);
+      bootstrap.channel(EpollDatagramChannel.class);
+      bootstrap.option(EpollChannelOption.SO_REUSEPORT, true);
+      this.channels = new DatagramChannel[workerSize];
+    } else
+    {
+      if (reusePort)
       {
-        ChannelPipeline cp = ch.pipeline();
-        cp.addLast(new KcpServer.UdpHandler());
+        LOG.warn("epoll不可用,使用nio", Epoll.unavailabilityCause());
       }
-    });
-    ChannelFuture sync = bootstrap.bind(port).syncUninterruptibly();
-    channel = (NioDatagramChannel) sync.channel();
-    addr = channel.localAddress();
+      group = new NioEventLoopGroup();
+      bootstrap.channel(NioDatagramChannel.class);
+      this.channels = new DatagramChannel[1];
+    }
+    bootstrap.group(group);
+    this.handlers = new UdpHandler[this.channels.length];
+    for (int i = 0; i < this.channels.length; i++)
+    {
+      final UdpHandler handler = new UdpHandler(this.channels.length > 1 ? i : -1);
+      this.handlers[i] = handler;
+      bootstrap.handler(new ChannelInitializer<DatagramChannel>()
+      {
+
+        @Override
+        protected void initChannel(DatagramChannel ch) throws Exception
+        {
+          ChannelPipeline cp = ch.pipeline();
+          cp.addLast(handler);
+        }
+      });
+      ChannelFuture sync = bootstrap.bind(port).syncUninterruptibly();
+      this.channels[i] = (DatagramChannel) sync.channel();
+    }
+    addr = this.channels[0].localAddress();
     Runtime.getRuntime().addShutdownHook(new Thread(new Runnable()
     {
       @Override
       public void run()
       {
-        nioEventLoopGroup.shutdownGracefully();
+        group.shutdownGracefully();
       }
     }));
   }
@@ -86,17 +153,102 @@ public abstract class KcpServer implements Output, KcpListerner
     if (!this.running)
     {
       this.running = true;
+      if (this.eventLoopMode)
+      {
+        KcpLoop[] temp = new KcpLoop[this.channels.length];
+        for (int i = 0; i < temp.length; i++)
+        {
+          temp[i] = new KcpLoop(this, this.channels[i], this.clock);
+        }
+        this.loops = temp;
+        this.register(temp);
+        return;
+      }
       for (int i = 0; i < this.workers.length; i++)
       {
-        workers[i] = new KcpThread(this, this);
+        workers[i] = new KcpThread(this, this, this.clock);
+        workers[i].server = this;
+        workers[i].index = i;
         workers[i].setName("kcp thread " + i);
         workers[i].wndSize(sndwnd, rcvwnd);
         workers[i].noDelay(nodelay, interval, resend, nc);
         workers[i].setMtu(mtu);
         workers[i].setTimeout(timeout);
+        workers[i].setZeroCopy(zeroCopy);
+        workers[i].setStream(stream);
+        workers[i].setFec(dataShards, parityShards);
+        workers[i].setCongestionController(congestion);
+        workers[i].setPacing(pacing);
+        workers[i].setHighResolution(highResolution);
+        workers[i].setMinRto(minRto);
+        workers[i].setDrainLimit(drainLimit);
+        workers[i].setWaitStrategy(waitStrategy);
+        workers[i].setAffinity(affinity);
+        workers[i].setHandshake(this.cookie != null);
         workers[i].start();
       }
+      this.register(this.workers);
+    }
+  }
+
+  /**
+   * register the workers as {@link KcpWorkerMXBean}
+   *
+   * @param ws
+   */
+  private void register(Worker[] ws)
+  {
+    MBeanServer ms = ManagementFactory.getPlatformMBeanServer();
+    this.mbeans = new ObjectName[ws.length];
+    for (int i = 0; i < ws.length; i++)
+    {
+      try
+      {
+        ObjectName name = new ObjectName("org.beykery.jkcp:type=KcpWorker,port=" + this.addr.getPort() + ",worker=" + i);
+        ms.registerMBean(ws[i].getMetrics(), name);
+        this.mbeans[i] = name;
+      } catch (JMException ex)
+      {
+        LOG.warn("jmx注册失败", ex);
+      }
+    }
+  }
+
+  private void unregister()
+  {
+    if (this.mbeans == null)
+    {
+      return;
+    }
+    MBeanServer ms = ManagementFactory.getPlatformMBeanServer();
+    for (ObjectName name : this.mbeans)
+    {
+      if (name != null)
+      {
+        try
+        {
+          ms.unregisterMBean(name);
+        } catch (JMException ex)
+        {
+          LOG.warn("jmx注销失败", ex);
+        }
+      }
+    }
+    this.mbeans = null;
+  }
+
+  /**
+   * the running workers or event loops
+   */
+  private Worker[] running()
+  {
+    KcpLoop[] temp = this.loops;
+    if (temp != null)
+    {
+      return temp;
     }
+    KcpThread[] ws = this.workers;
+    return ws == null ? new Worker[0] : ws;
   }
 
   /**
@@ -108,12 +260,29 @@ public abstract class KcpServer implements Output, KcpListerner
   {
     if (this.running)
     {
-      for (KcpThread kt : this.workers)
+      this.unregister();
+      KcpLoop[] temp = this.loops;
+      if (temp != null)
       {
-        kt.close();
+        this.loops = null;//no new sessions from the io threads
+        this.workers = null;
+        for (KcpLoop kl : temp)
+        {
+          kl.close();
+        }
+      } else
+      {
+        for (KcpThread kt : this.workers)
+        {
+          kt.close();
+        }
+        this.workers = null;
+      }
+      for (int i = 1; i < this.channels.length; i++)
+      {
+        this.channels[i].close();
       }
-      this.workers = null;
-      return this.channel.close();
+      return this.channels[0].close();
     }
     return null;
   }
@@ -127,12 +296,17 @@ public abstract class KcpServer implements Output, KcpListerner
   {
     if (!this.running)
     {
-      this.channel.connect(addr);
+      for (DatagramChannel channel : this.channels)
+      {
+        channel.connect(addr);
+      }
     }
   }
 
   /**
-   * kcp call
+   * kcp call. on a worker the datagram joins the batch of its round, see
+   * {@link #write(int, List)}, on an event loop it is flushed when the loop is
+   * done with its sessions
    *
    * @param msg
    * @param kcp
@@ -142,7 +316,44 @@ public abstract class KcpServer implements Output, KcpListerner
   public void out(ByteBuf msg, Kcp kcp, Object user)
   {
     DatagramPacket temp = new DatagramPacket(msg, (InetSocketAddress) user, this.addr);
-    this.channel.writeAndFlush(temp);
+    Thread t = Thread.currentThread();
+    if (t instanceof KcpThread && ((KcpThread) t).server == this)
+    {
+      ((KcpThread) t).write(temp);
+      return;
+    }
+    KcpLoop kl = KcpLoop.current();
+    if (kl != null && kl.server == this)
+    {
+      kl.write(temp);
+      return;
+    }
+    this.channels[0].writeAndFlush(temp);
+  }
+
+  /**
+   * write the datagrams of one worker round in a single event loop task with a
+   * single flush (sendmmsg on transports that support it), on the channel of
+   * the worker
+   *
+   * @param index the worker
+   * @param batch
+   */
+  void write(int index, final List<DatagramPacket> batch)
+  {
+    final DatagramChannel channel = this.channels[this.channels.length > 1 ? index : 0];
+    channel.eventLoop().execute(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        for (DatagramPacket dp : batch)
+        {
+          channel.write(dp, channel.voidPromise());
+        }
+        channel.flush();
+      }
+    });
   }
 
   /**
@@ -191,36 +402,496 @@ public abstract class KcpServer implements Output, KcpListerner
     this.timeout = timeout;
   }
 
+  /**
+   * zero copy send and receive, see {@link KcpOnUdp#setZeroCopy(boolean)}
+   *
+   * @param zeroCopy
+   */
+  public void setZeroCopy(boolean zeroCopy)
+  {
+    this.zeroCopy = zeroCopy;
+  }
+
+  public boolean isZeroCopy()
+  {
+    return zeroCopy;
+  }
+
+  /**
+   * stream mode for every session, see {@link KcpOnUdp#setStream(boolean)}.
+   * set before start
+   *
+   * @param stream
+   */
+  public void setStream(boolean stream)
+  {
+    this.stream = stream;
+  }
+
+  public boolean isStream()
+  {
+    return stream;
+  }
+
+  /**
+   * congestion control of every session: {@link CongestionController.Reno}
+   * (the kcp default), {@link CongestionController.Bbr} or
+   * {@link CongestionController.None}, by their FACTORY. set before start
+   *
+   * @param congestion
+   */
+  public void setCongestionController(CongestionController.Factory congestion)
+  {
+    this.congestion = congestion;
+  }
+
+  /**
+   * pacing of every session, see {@link KcpOnUdp#setPacing(long)}: 0 paces at
+   * the rate of the congestion controller, or the window per rtt, a positive
+   * value is a fixed rate in bytes/s, -1 (default) sends every window at once.
+   * set before start
+   *
+   * @param pacing
+   */
+  public void setPacing(long pacing)
+  {
+    this.pacing = pacing;
+  }
+
+  public long getPacing()
+  {
+    return pacing;
+  }
+
+  /**
+   * microsec rtt of every session, see
+   * {@link KcpOnUdp#setHighResolution(boolean)}: for rtts below 1ms, e.g. in a
+   * datacenter, with a min rto of a few ms. set before start
+   *
+   * @param highResolution
+   */
+  public void setHighResolution(boolean highResolution)
+  {
+    this.highResolution = highResolution;
+  }
+
+  public boolean isHighResolution()
+  {
+    return highResolution;
+  }
+
+  /**
+   * min rto of every session in ms, 0 (default) keeps the one of noDelay, 30
+   * with nodelay and 100 without. set before start
+   *
+   * @param minRto
+   */
+  public void setMinRto(int minRto)
+  {
+    this.minRto = minRto;
+  }
+
+  public int getMinRto()
+  {
+    return minRto;
+  }
+
+  /**
+   * time source of the workers, their sessions and timers, default
+   * {@link Clock#SYSTEM}. a {@link Clock.Virtual} runs the server in
+   * simulated time. set before start
+   *
+   * @param clock
+   */
+  public void setClock(Clock clock)
+  {
+    this.clock = clock;
+  }
+
+  public Clock getClock()
+  {
+    return clock;
+  }
+
+  /**
+   * reed solomon fec for every session, e.g. 10 data and 3 parity datagrams
+   * per group, see {@link KcpOnUdp#setFec(int, int)}. 0 disables, set before
+   * start
+   *
+   * @param dataShards
+   * @param parityShards
+   */
+  public void setFec(int dataShards, int parityShards)
+  {
+    if (dataShards < 0 || parityShards < 0 || dataShards + parityShards > 256)
+    {
+      throw new IllegalArgumentException("参数非法");
+    }
+    boolean on = dataShards > 0 && parityShards > 0;
+    this.dataShards = on ? dataShards : 0;
+    this.parityShards = on ? parityShards : 0;
+  }
+
   public long getTimeout()
   {
     return this.timeout;
   }
 
+  /**
+   * max datagrams a worker takes from its queue, and messages it takes from
+   * one session, before serving the others. default 1024
+   *
+   * @param drainLimit
+   */
+  public void setDrainLimit(int drainLimit)
+  {
+    this.drainLimit = drainLimit;
+  }
+
+  /**
+   * run the sessions on the netty event loop of their channel instead of
+   * KcpThread workers: no queue between io and kcp, timers are
+   * EventLoop.schedule. with a single nio channel that is one thread, use
+   * reusePort for one loop per worker. set before start
+   *
+   * @param eventLoopMode
+   */
+  public void setEventLoopMode(boolean eventLoopMode)
+  {
+    this.eventLoopMode = eventLoopMode;
+  }
+
+  /**
+   * a session configured like the workers do
+   *
+   * @param sender
+   * @param conv
+   * @return
+   */
+  KcpOnUdp newSession(InetSocketAddress sender, int conv)
+  {
+    KcpOnUdp ku = new KcpOnUdp(this, sender, this, conv);
+    ku.noDelay(nodelay, interval, resend, nc);
+    ku.wndSize(sndwnd, rcvwnd);
+    ku.setMtu(mtu);
+    ku.setTimeout(timeout);
+    ku.setZeroCopy(zeroCopy);
+    ku.setStream(stream);
+    ku.setFec(dataShards, parityShards);
+    if (congestion != null)
+    {
+      ku.setCongestionController(congestion.create());
+    }
+    ku.setPacing(pacing);
+    ku.setHighResolution(highResolution);
+    if (minRto > 0)
+    {
+      ku.setMinRto(minRto);
+    }
+    ku.setDrainLimit(drainLimit);
+    ku.setCookie(this.cookie);
+    return ku;
+  }
+
+  /**
+   * initiate a session to remote with a newly allocated conv. the replies are
+   * routed by that conv, with reusePort they may however reach the channel of
+   * another worker, so initiate sessions from a server without reusePort
+   *
+   * @param remote
+   * @return
+   */
+  public KcpOnUdp open(InetSocketAddress remote)
+  {
+    if (!this.running)
+    {
+      throw new IllegalStateException("not started");
+    }
+    KcpOnUdp ku = this.newSession(remote, KcpOnUdp.allocateConv());
+    int hash = ku.getKcp().getConv() & 0x7fffffff;
+    if (this.cookie != null)
+    {
+      ku.handshake();
+      this.admit(ku.getKcp().getConv());
+    }
+    KcpLoop[] temp = this.loops;
+    if (temp != null)
+    {
+      temp[hash % temp.length].register(ku);
+    } else
+    {
+      this.workers[hash % this.workers.length].register(ku);
+    }
+    return ku;
+  }
+
+  /**
+   * stateless handshake, see {@link Cookie}: a session is only allocated for a
+   * peer that echoed a token issued to its address, any other datagram of an
+   * unknown conv is dropped on the io thread. sessions opened by this server
+   * perform the handshake, both ends have to enable it. other datagrams only
+   * pass the io thread for the exact convs of live sessions, a spoofer has to
+   * guess one of them: with n sessions and random convs (see
+   * {@link KcpOnUdp#allocateConv()}) about n / 2^32 of its datagrams reach a
+   * worker. set before start
+   *
+   * @param handshake
+   */
+  public void setHandshake(boolean handshake)
+  {
+    this.cookie = handshake ? new Cookie() : null;
+    this.admitted = handshake ? new ConcurrentHashMap<Integer, AtomicInteger>() : null;
+  }
+
+  public boolean isHandshake()
+  {
+    return this.cookie != null;
+  }
+
+  /**
+   * issues and verifies the tokens, null without handshake
+   *
+   * @return
+   */
+  Cookie getCookie()
+  {
+    return this.cookie;
+  }
+
+  /**
+   * a session of conv is live, with handshake. counted, with reusePort a
+   * rebound peer may have a session of the same conv on two channels
+   *
+   * @param conv
+   */
+  void admit(int conv)
+  {
+    if (this.admitted == null)
+    {
+      return;
+    }
+    while (true)
+    {
+      AtomicInteger n = this.admitted.get(conv);
+      if (n == null)
+      {
+        if (this.admitted.putIfAbsent(conv, new AtomicInteger(1)) == null)
+        {
+          return;
+        }
+        continue;
+      }
+      int v = n.get();
+      if (v == 0)//being removed by revoke
+      {
+        this.admitted.remove(conv, n);
+      } else if (n.compareAndSet(v, v + 1))
+      {
+        return;
+      }
+    }
+  }
+
+  /**
+   * a session of conv is gone, with handshake
+   *
+   * @param conv
+   */
+  void revoke(int conv)
+  {
+    AtomicInteger n = this.admitted != null ? this.admitted.get(conv) : null;
+    if (n != null && n.decrementAndGet() == 0)
+    {
+      this.admitted.remove(conv, n);
+    }
+  }
+
+  /**
+   * handshake on the io thread: answers HELLO with a cookie, passes ECHO with
+   * a valid token and datagrams of live convs, drops the rest
+   *
+   * @param dp
+   * @param index
+   * @param handshake dp is a handshake datagram
+   * @return false if dp was consumed
+   */
+  private boolean accept(DatagramPacket dp, int index, boolean handshake)
+  {
+    ByteBuf content = dp.content();
+    int ri = content.readerIndex();
+    int conv = content.getInt(ri);
+    switch (handshake ? content.getByte(ri + 4) : 0)
+    {
+      case Cookie.CMD_HELLO:
+        long token = this.cookie.token(dp.sender(), conv);
+        this.channels[Math.max(index, 0)].writeAndFlush(new DatagramPacket(Cookie.encode(conv, Cookie.CMD_COOKIE, token), dp.sender()));
+        break;
+      case Cookie.CMD_ECHO:
+        if (this.cookie.verify(dp.sender(), conv, content.getLong(ri + 5)))
+        {
+          return true;
+        }
+        break;
+      default:
+        if (this.admitted.containsKey(conv))
+        {
+          return true;
+        }
+        break;
+    }
+    dp.release();
+    return false;
+  }
+
+  /**
+   * how idle workers wait: {@link WaitStrategy.TimedPark} (default),
+   * {@link WaitStrategy.SpinPark}, {@link WaitStrategy.SpinYield} or
+   * {@link WaitStrategy.BusySpin}. set before start
+   *
+   * @param waitStrategy
+   */
+  public void setWaitStrategy(WaitStrategy waitStrategy)
+  {
+    this.waitStrategy = waitStrategy;
+  }
+
+  /**
+   * cpu affinity hint for the workers, set before start
+   *
+   * @param affinity
+   */
+  public void setAffinity(Affinity affinity)
+  {
+    this.affinity = affinity;
+  }
+
   /**
    * 发送
    *
    * @param bb
    * @param ku
+   * @return false if the message is dropped, see {@link KcpOnUdp#send(ByteBuf)}
    */
-  public void send(ByteBuf bb, KcpOnUdp ku)
+  public boolean send(ByteBuf bb, KcpOnUdp ku)
   {
-    ku.send(bb);
+    return ku.send(bb);
   }
   public void send(ByteBuf bb, InetSocketAddress addr)
   {
      DatagramPacket temp = new DatagramPacket(bb,  addr, this.addr);
-    this.channel.writeAndFlush(temp);
+    this.channels[0].writeAndFlush(temp);
   }
   /**
-   * receive DatagramPacket
+   * counters summed over every session of this server, closed ones included.
+   * each call returns a new snapshot, the state fields (srtt, cwnd...) are
+   * only meaningful per session, see {@link Kcp#getSnmp()}
+   *
+   * @return
+   */
+  public Snmp getSnmp()
+  {
+    Snmp sum = new Snmp();
+    for (Worker w : this.running())
+    {
+      sum.add(w.getSnmp());
+    }
+    return sum;
+  }
+
+  /**
+   * runtime histograms of each worker (or event loop), live: their getters
+   * return snapshots. the same as the KcpWorker mbeans
+   *
+   * @return
+   */
+  public List<WorkerMetrics> getWorkerMetrics()
+  {
+    List<WorkerMetrics> list = new ArrayList<>();
+    for (Worker w : this.running())
+    {
+      list.add(w.getMetrics());
+    }
+    return list;
+  }
+
+  /**
+   * runtime histograms summed over the workers, a snapshot
+   *
+   * @return
+   */
+  public WorkerMetrics getMetrics()
+  {
+    WorkerMetrics sum = new WorkerMetrics(new Snmp());
+    for (Worker w : this.running())
+    {
+      sum.add(w.getMetrics());
+    }
+    return sum;
+  }
+
+  /**
+   * datagrams dropped on the io threads: malformed, rejected by the handshake
+   * or over a full worker queue
+   *
+   * @return
+   */
+  public long getDropped()
+  {
+    long n = 0;
+    for (UdpHandler handler : this.handlers)
+    {
+      n += handler.dropped;
+    }
+    return n;
+  }
+
+  /**
+   * receive DatagramPacket. the headers are validated here so that garbage
+   * never reaches a worker. sessions are keyed by the conv in the first 4
+   * bytes and keep working when the address of the peer changes. on the shared
+   * channel the conv also picks the worker, with reusePort the kernel picks the
+   * channel by address, a rebound peer that lands on another channel is then a
+   * new session there
    *
    * @param dp
+   * @param index worker of the channel, -1 for the shared channel
+   * @return false if dp was dropped
    */
-  private void onReceive(DatagramPacket dp)
+  private boolean onReceive(DatagramPacket dp, int index)
   {
-    InetSocketAddress sender = dp.sender();
-    int hash = sender.hashCode();
-    this.workers[hash % workers.length].input(dp);
+    ByteBuf content = dp.content();
+    boolean handshake = this.cookie != null && content.readableBytes() == Cookie.SIZE && Cookie.isHandshake(content.getByte(content.readerIndex() + 4));
+    if (!handshake && !(this.dataShards > 0 ? Fec.validate(content) : Kcp.validate(content)))
+    {
+      dp.release();
+      return false;
+    }
+    if (this.cookie != null)
+    {
+      boolean hello = handshake && content.getByte(content.readerIndex() + 4) == Cookie.CMD_HELLO;
+      if (!this.accept(dp, index, handshake))
+      {
+        return hello;
+      }
+    }
+    KcpLoop[] temp = this.loops;
+    if (temp != null)
+    {
+      temp[Math.max(index, 0)].input(dp);
+      return true;
+    }
+    KcpThread[] ws = this.workers;
+    if (ws == null)//closed
+    {
+      dp.release();
+      return false;
+    }
+    if (index < 0)
+    {
+      int hash = content.getInt(content.readerIndex()) & 0x7fffffff;
+      index = hash % ws.length;
+    }
+    return ws[index].input(dp);
   }
 
   /**
@@ -229,11 +900,32 @@ public abstract class KcpServer implements Output, KcpListerner
   class UdpHandler extends ChannelInboundHandlerAdapter
   {
 
+    private final int index;
+    private volatile long dropped;//only written by the event loop of the channel
+
+    UdpHandler(int index)
+    {
+      this.index = index;
+    }
+
     @Override
     public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception
     {
       DatagramPacket dp = (DatagramPacket) msg;
-      KcpServer.this.onReceive(dp);
+      if (!KcpServer.this.onReceive(dp, index))
+      {
+        this.dropped++;
+      }
+    }
+
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) throws Exception
+    {
+      KcpLoop[] temp = KcpServer.this.loops;
+      if (temp != null)
+      {
+        temp[Math.max(index, 0)].readComplete();
+      }
     }
 
     @Override
@@ -3,23 +3,44 @@
  */
 package org.beykery.jkcp;
 
+import io.netty.buffer.ByteBuf;
 import io.netty.channel.socket.DatagramPacket;
-import java.net.InetSocketAddress;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.concurrent.LinkedBlockingQueue;
+import io.netty.util.internal.PlatformDependent;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  *
  * @author beykery
  */
-public class KcpThread extends Thread
+public class KcpThread extends Thread implements Worker
 {
 
+  public static final int INPUT_CAPACITY = 1 << 16;//待处理的最大udp包数
   private final Output out;
-  private final LinkedBlockingQueue<DatagramPacket> inputs;
-  private boolean running;
-  private final Map<InetSocketAddress, KcpOnUdp> kcps;
+  private final Queue<DatagramPacket> inputs;
+  private final Queue<KcpOnUdp> opens;//sessions initiated by this end
+  private final Queue<KcpOnUdp> wakeups;//sessions with new data to send, each at most once
+  private final ArrayDeque<KcpOnUdp> ready;//sessions to update in this tick
+  private final TimerWheel wheel;
+  private volatile boolean running;
+  private volatile boolean parked;
+  private volatile long arrived;//nanoTime of the first datagram since the last drain, 0 none
+  private int drainLimit = 1024;
+  private WaitStrategy waitStrategy = new WaitStrategy.TimedPark();
+  private Affinity affinity;
+  int index;//index in the server
+  KcpServer server;//owner
+  private List<DatagramPacket> outputs = new ArrayList<>();//datagrams of this round
+  private final ConvMap kcps;//by conv
+  private final Snmp snmp = new Snmp(true);//closed sessions, written by this worker only
+  private final WorkerMetrics metrics = new WorkerMetrics(snmp);
+  private final Clock source;
+  private final Clock.Cached clock;//of source, ticked once per round
   private final KcpListerner listerner;
   private int nodelay;
   private int interval = Kcp.IKCP_INTERVAL;
@@ -29,6 +50,15 @@ public class KcpThread extends Thread
   private int rcvwnd = Kcp.IKCP_WND_RCV;
   private int mtu = Kcp.IKCP_MTU_DEF;
   private long timeout;//idle
+  private boolean zeroCopy;
+  private boolean stream;
+  private int dataShards;
+  private CongestionController.Factory congestion;
+  private long pacing = -1;
+  private boolean highResolution;
+  private int minRto;
+  private int parityShards;
+  private boolean handshake;//sessions only for a validated ECHO
 
   /**
    * fastest: ikcp_nodelay(kcp, 1, 20, 2, 1) nodelay: 0:disable(default),
@@ -78,11 +108,30 @@ public class KcpThread extends Thread
    * @param listerner
    */
   public KcpThread(Output out, KcpListerner listerner)
+  {
+    this(out, listerner, Clock.SYSTEM);
+  }
+
+  /**
+   * kcp工作线程
+   *
+   * @param out
+   * @param listerner
+   * @param source time of the sessions and the timers, e.g. a
+   * {@link Clock.Virtual} for simulations
+   */
+  public KcpThread(Output out, KcpListerner listerner, Clock source)
   {
     this.out = out;
     this.listerner = listerner;
-    inputs = new LinkedBlockingQueue<>();
-    kcps = new HashMap<>();
+    this.source = source;
+    this.clock = new Clock.Cached(source);
+    inputs = PlatformDependent.newFixedMpscQueue(INPUT_CAPACITY);
+    opens = PlatformDependent.newMpscQueue();
+    wakeups = PlatformDependent.newMpscQueue();
+    ready = new ArrayDeque<>();
+    wheel = new TimerWheel(4096, 1, clock.millis());
+    kcps = new ConvMap(1024);
   }
 
   /**
@@ -104,61 +153,315 @@ public class KcpThread extends Thread
   public void close()
   {
     this.running = false;
+    LockSupport.unpark(this);
   }
 
   @Override
   public void run()
   {
+    if (this.affinity != null)
+    {
+      this.affinity.bind(this.index);
+    }
     while (this.running)
     {
-      //input
-      while (!this.inputs.isEmpty())
+      long start = System.nanoTime();
+      this.round(this.outputs);
+      //output
+      if (!this.outputs.isEmpty())
       {
-        DatagramPacket dp = this.inputs.remove();
-        KcpOnUdp ku = this.kcps.get(dp.sender());
-        if (ku == null)
+        this.server.write(this.index, this.outputs);
+        this.outputs = new ArrayList<>();
+      }
+      this.metrics.sessions.record(this.kcps.size());
+      this.metrics.tick.record(System.nanoTime() - start);
+      //wait
+      WaitStrategy ws = this.waitStrategy;
+      boolean park = ws.parks();
+      if (park)
+      {
+        this.parked = true;
+      }
+      long next = this.wheel.nextExpiry();
+      int counter = 0;
+      while (this.running && this.inputs.isEmpty() && this.wakeups.isEmpty() && this.opens.isEmpty())
+      {
+        long nanos = Long.MAX_VALUE;
+        if (next != Long.MAX_VALUE)
         {
-          ku = new KcpOnUdp(this.out, dp.sender(), this.listerner);//初始化
-          ku.noDelay(nodelay, interval, resend, nc);
-          ku.wndSize(sndwnd, rcvwnd);
-          ku.setMtu(mtu);
-          ku.setTimeout(timeout);
-          this.kcps.put(dp.sender(), ku);
+          nanos = TimeUnit.MILLISECONDS.toNanos(next - this.source.millis());
+          if (nanos <= 0)
+          {
+            break;
+          }
         }
-        ku.input(dp.content());
+        counter = ws.idle(nanos, counter);
+      }
+      if (park)
+      {
+        this.parked = false;
       }
-      //update
-      KcpOnUdp temp = null;
-      for (KcpOnUdp ku : this.kcps.values())
+    }
+    //release
+    DatagramPacket dp;
+    while ((dp = this.inputs.poll()) != null)
+    {
+      dp.release();
+    }
+    KcpOnUdp ku;
+    while ((ku = this.opens.poll()) != null)
+    {
+      ku.release();
+    }
+    for (KcpOnUdp temp : this.kcps.values())
+    {
+      temp.release();
+    }
+    this.kcps.clear();
+    for (DatagramPacket temp : this.outputs)
+    {
+      temp.release();
+    }
+    this.outputs.clear();
+  }
+
+  /**
+   * one round of the worker, without waiting: drain the inputs, take the
+   * opened and woken sessions, expire the timers at the time of the clock
+   * (ticked here), update the ready sessions and schedule them again
+   *
+   * @param batch gets the datagrams written by the sessions of this round
+   */
+  void round(List<DatagramPacket> batch)
+  {
+    this.outputs = batch;
+    //input
+    long arrival = this.arrived;
+    if (arrival != 0)
+    {
+      this.arrived = 0;
+    } else
+    {
+      arrival = System.nanoTime();
+    }
+    this.metrics.queue.record(this.inputs.size());
+    DatagramPacket dp;
+    for (int i = 0; i < this.drainLimit && (dp = this.inputs.poll()) != null; i++)
+    {
+      ByteBuf content = dp.content();
+      int conv = content.getInt(content.readerIndex());
+      KcpOnUdp ku = this.kcps.get(conv);
+      if (ku == null)
       {
-        ku.update();
-        if (ku.isClosed())
+        if (this.handshake && (content.readableBytes() != Cookie.SIZE || content.getByte(content.readerIndex() + 4) != Cookie.CMD_ECHO))
         {
-          temp = ku;
+          dp.release();
+          continue;
+        }
+        ku = new KcpOnUdp(this.out, dp.sender(), this.listerner, conv);//初始化
+        ku.noDelay(nodelay, interval, resend, nc);
+        ku.wndSize(sndwnd, rcvwnd);
+        ku.setMtu(mtu);
+        ku.setTimeout(timeout);
+        ku.setZeroCopy(zeroCopy);
+        ku.setStream(stream);
+        ku.setFec(dataShards, parityShards);
+        if (congestion != null)
+        {
+          ku.setCongestionController(congestion.create());
+        }
+        ku.setPacing(pacing);
+        ku.setHighResolution(highResolution);
+        if (minRto > 0)
+        {
+          ku.setMinRto(minRto);
+        }
+        ku.setDrainLimit(drainLimit);
+        ku.setCookie(this.server.getCookie());
+        ku.setWorker(this);
+        this.kcps.put(conv, ku);
+        if (this.handshake)
+        {
+          this.server.admit(conv);
         }
       }
-      if (temp != null)//删掉过时的kcp
+      ku.input(content, arrival, dp.sender());
+      this.ready(ku);
+    }
+    //open
+    KcpOnUdp ku;
+    while ((ku = this.opens.poll()) != null)
+    {
+      this.kcps.put(ku.getKcp().getConv(), ku);
+      this.ready(ku);
+    }
+    //send
+    while ((ku = this.wakeups.poll()) != null)
+    {
+      ku.clearSignal();
+      if (!ku.isClosed())
       {
-        this.kcps.remove((InetSocketAddress) temp.getKcp().getUser());
+        this.ready(ku);
       }
-      try
+    }
+    //timer
+    this.wheel.expire(this.clock.tick(), this.ready);
+    //update
+    long t = System.nanoTime();
+    while ((ku = this.ready.poll()) != null)
+    {
+      ku.ready = false;
+      ku.update();
+      long now = System.nanoTime();
+      this.metrics.update.record(now - t);
+      t = now;
+      if (ku.isClosed())//删掉过时的kcp
       {
-        Thread.sleep(this.interval);
-      } catch (InterruptedException ex)
+        this.kcps.remove(ku.getKcp().getConv());
+        if (this.handshake)
+        {
+          this.server.revoke(ku.getKcp().getConv());
+        }
+        ku.release();
+      } else
       {
+        long next = ku.nextWakeup();
+        if (next != Long.MAX_VALUE)
+        {
+          this.wheel.schedule(ku, next);
+        }
       }
     }
   }
 
   /**
-   * 收到输入
+   * 放入本轮的更新列表
+   *
+   * @param ku
+   */
+  private void ready(KcpOnUdp ku)
+  {
+    if (!ku.ready)
+    {
+      ku.ready = true;
+      this.wheel.cancel(ku);
+      this.ready.add(ku);
+    }
+  }
+
+  @Override
+  public Snmp getSnmp()
+  {
+    return snmp;
+  }
+
+  @Override
+  public WorkerMetrics getMetrics()
+  {
+    return metrics;
+  }
+
+  @Override
+  public Clock getClock()
+  {
+    return clock;
+  }
+
+  /**
+   * 有数据要发送,可在任意线程调用
+   *
+   * @param ku
+   */
+  @Override
+  public void wakeup(KcpOnUdp ku)
+  {
+    this.wakeups.offer(ku);
+    this.signal();
+  }
+
+  /**
+   * add a session initiated by this end, may be called from any thread
+   *
+   * @param ku
+   */
+  void register(KcpOnUdp ku)
+  {
+    ku.setWorker(this);
+    this.opens.offer(ku);
+    this.signal();
+  }
+
+  /**
+   * 收到输入,队列满时丢弃. the datagram holds at least the conv (4 bytes)
+   *
+   * @param dp
+   * @return
+   */
+  boolean input(DatagramPacket dp)
+  {
+    if (!this.inputs.offer(dp))
+    {
+      dp.release();
+      return false;
+    }
+    if (this.arrived == 0)
+    {
+      this.arrived = System.nanoTime();
+    }
+    this.signal();
+    return true;
+  }
+
+  /**
+   * 本轮的输出,只在本线程调用
+   *
+   * @param dp
+   */
+  void write(DatagramPacket dp)
+  {
+    this.outputs.add(dp);
+  }
+
+  /**
+   * 唤醒等待中的worker
+   */
+  private void signal()
+  {
+    if (this.parked)
+    {
+      LockSupport.unpark(this);
+    }
+  }
+
+  /**
+   * how to wait when there is nothing to do
+   *
+   * @param waitStrategy
+   */
+  public void setWaitStrategy(WaitStrategy waitStrategy)
+  {
+    this.waitStrategy = waitStrategy;
+  }
+
+  /**
+   * cpu affinity hint, applied by this thread when it starts
+   *
+   * @param affinity
+   */
+  public void setAffinity(Affinity affinity)
+  {
+    this.affinity = affinity;
+  }
+
+  /**
+   * max datagrams (and messages of one session) handled before the others get
+   * their turn
    *
-   * @param addr
-   * @param content
+   * @param drainLimit
    */
-  void input(DatagramPacket dp)
+  public void setDrainLimit(int drainLimit)
   {
-    this.inputs.add(dp);
+    this.drainLimit = drainLimit;
   }
 
   public void setTimeout(long timeout)
@@ -166,6 +469,99 @@ public class KcpThread extends Thread
     this.timeout = timeout;
   }
 
+  /**
+   * zero copy send and receive, see {@link KcpOnUdp#setZeroCopy(boolean)}
+   *
+   * @param zeroCopy
+   */
+  public void setZeroCopy(boolean zeroCopy)
+  {
+    this.zeroCopy = zeroCopy;
+  }
+
+  public boolean isZeroCopy()
+  {
+    return zeroCopy;
+  }
+
+  /**
+   * stream mode, see {@link KcpOnUdp#setStream(boolean)}
+   *
+   * @param stream
+   */
+  public void setStream(boolean stream)
+  {
+    this.stream = stream;
+  }
+
+  public boolean isStream()
+  {
+    return stream;
+  }
+
+  /**
+   * congestion control of the sessions, null for the kcp default
+   *
+   * @param congestion
+   */
+  public void setCongestionController(CongestionController.Factory congestion)
+  {
+    this.congestion = congestion;
+  }
+
+  /**
+   * pacing of the sessions, see {@link KcpOnUdp#setPacing(long)}
+   *
+   * @param pacing
+   */
+  public void setPacing(long pacing)
+  {
+    this.pacing = pacing;
+  }
+
+  /**
+   * see {@link KcpOnUdp#setHighResolution(boolean)}
+   *
+   * @param highResolution
+   */
+  public void setHighResolution(boolean highResolution)
+  {
+    this.highResolution = highResolution;
+  }
+
+  /**
+   * min rto of the sessions in ms, 0 keeps the one of noDelay
+   *
+   * @param minRto
+   */
+  public void setMinRto(int minRto)
+  {
+    this.minRto = minRto;
+  }
+
+  /**
+   * fec of the sessions, see {@link KcpOnUdp#setFec(int, int)}
+   *
+   * @param dataShards
+   * @param parityShards
+   */
+  public void setFec(int dataShards, int parityShards)
+  {
+    this.dataShards = dataShards;
+    this.parityShards = parityShards;
+  }
+
+  /**
+   * only a validated ECHO creates a session, see
+   * {@link KcpServer#setHandshake(boolean)}
+   *
+   * @param handshake
+   */
+  public void setHandshake(boolean handshake)
+  {
+    this.handshake = handshake;
+  }
+
   public long getTimeout()
   {
     return timeout;
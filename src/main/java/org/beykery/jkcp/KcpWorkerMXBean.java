@@ -0,0 +1,59 @@
+/**
+ * worker的jmx接口
+ */
+package org.beykery.jkcp;
+
+/**
+ * jmx view of one worker ({@link KcpThread} or {@link KcpLoop}), registered
+ * by {@link KcpServer} as org.beykery.jkcp:type=KcpWorker,port=..,worker=..
+ * while it runs. every attribute is a snapshot
+ *
+ * @author beykery
+ */
+public interface KcpWorkerMXBean
+{
+
+  /**
+   * duration of one round of the worker (input, timers, updates, output), ns
+   *
+   * @return
+   */
+  Histogram getTickNanos();
+
+  /**
+   * datagrams waiting in the input queue at the start of a round, for an event
+   * loop the datagrams of one read
+   *
+   * @return
+   */
+  Histogram getQueueDepth();
+
+  /**
+   * duration of the update of one session, ns
+   *
+   * @return
+   */
+  Histogram getUpdateNanos();
+
+  /**
+   * sessions of the worker, once per round
+   *
+   * @return
+   */
+  Histogram getSessions();
+
+  /**
+   * from the arrival of the oldest datagram of a batch to the listener
+   * callback it led to, ns
+   *
+   * @return
+   */
+  Histogram getLatencyNanos();
+
+  /**
+   * protocol counters of the sessions
+   *
+   * @return
+   */
+  Snmp getSnmp();
+}
@@ -13,7 +13,7 @@ public interface Output
 {
 
   /**
-   * kcp的底层输出
+   * kcp的底层输出,msg交由实现方释放
    *
    * @param msg
    * @param kcp
@@ -0,0 +1,265 @@
+/**
+ * reed solomon
+ */
+package org.beykery.jkcp;
+
+/**
+ * systematic reed solomon codec over GF(2^8) (polynomial 0x11d), the
+ * encoding matrix is a vandermonde matrix turned systematic like in
+ * klauspost/reedsolomon used by kcp-go. multiplication is one lookup in a 64k
+ * table
+ *
+ * @author beykery
+ */
+class ReedSolomon
+{
+
+  private static final int[] EXP = new int[512];
+  private static final int[] LOG = new int[256];
+  private static final byte[] MUL = new byte[256 * 256];//MUL[a << 8 | b] = a * b
+
+  static
+  {
+    int x = 1;
+    for (int i = 0; i < 255; i++)
+    {
+      EXP[i] = x;
+      LOG[x] = i;
+      x <<= 1;
+      if ((x & 0x100) != 0)
+      {
+        x ^= 0x11d;
+      }
+    }
+    for (int i = 255; i < EXP.length; i++)
+    {
+      EXP[i] = EXP[i - 255];
+    }
+    for (int a = 1; a < 256; a++)
+    {
+      for (int b = 1; b < 256; b++)
+      {
+        MUL[a << 8 | b] = (byte) EXP[LOG[a] + LOG[b]];
+      }
+    }
+  }
+
+  private final int dataShards;
+  private final int parityShards;
+  private final int[][] matrix;//total x data, the first data rows are the identity
+
+  /**
+   * codec
+   *
+   * @param dataShards
+   * @param parityShards
+   */
+  ReedSolomon(int dataShards, int parityShards)
+  {
+    if (dataShards <= 0 || parityShards <= 0 || dataShards + parityShards > 256)
+    {
+      throw new IllegalArgumentException("参数非法");
+    }
+    this.dataShards = dataShards;
+    this.parityShards = parityShards;
+    int total = dataShards + parityShards;
+    int[][] vm = new int[total][dataShards];
+    for (int r = 0; r < total; r++)
+    {
+      for (int c = 0; c < dataShards; c++)
+      {
+        vm[r][c] = exp(r, c);
+      }
+    }
+    int[][] top = new int[dataShards][];
+    System.arraycopy(vm, 0, top, 0, dataShards);
+    this.matrix = multiply(vm, invert(top));
+  }
+
+  private static int mul(int a, int b)
+  {
+    return MUL[a << 8 | b] & 0xff;
+  }
+
+  private static int exp(int a, int n)
+  {
+    if (n == 0)
+    {
+      return 1;
+    }
+    if (a == 0)
+    {
+      return 0;
+    }
+    return EXP[(LOG[a] * n) % 255];
+  }
+
+  private static int[][] multiply(int[][] a, int[][] b)
+  {
+    int[][] r = new int[a.length][b[0].length];
+    for (int i = 0; i < a.length; i++)
+    {
+      for (int j = 0; j < b[0].length; j++)
+      {
+        int v = 0;
+        for (int k = 0; k < b.length; k++)
+        {
+          v ^= mul(a[i][k], b[k][j]);
+        }
+        r[i][j] = v;
+      }
+    }
+    return r;
+  }
+
+  /**
+   * gauss jordan
+   *
+   * @param m square
+   * @return
+   */
+  private static int[][] invert(int[][] m)
+  {
+    int n = m.length;
+    int[][] w = new int[n][2 * n];
+    for (int i = 0; i < n; i++)
+    {
+      System.arraycopy(m[i], 0, w[i], 0, n);
+      w[i][n + i] = 1;
+    }
+    for (int c = 0; c < n; c++)
+    {
+      int p = c;
+      while (p < n && w[p][c] == 0)
+      {
+        p++;
+      }
+      if (p == n)
+      {
+        throw new IllegalArgumentException("singular matrix");
+      }
+      int[] t = w[p];
+      w[p] = w[c];
+      w[c] = t;
+      int inv = EXP[255 - LOG[w[c][c]]];
+      for (int j = 0; j < 2 * n; j++)
+      {
+        w[c][j] = mul(w[c][j], inv);
+      }
+      for (int r = 0; r < n; r++)
+      {
+        int f = w[r][c];
+        if (r != c && f != 0)
+        {
+          for (int j = 0; j < 2 * n; j++)
+          {
+            w[r][j] ^= mul(f, w[c][j]);
+          }
+        }
+      }
+    }
+    int[][] r = new int[n][n];
+    for (int i = 0; i < n; i++)
+    {
+      System.arraycopy(w[i], n, r[i], 0, n);
+    }
+    return r;
+  }
+
+  /**
+   * out[0, length) = sum of coef[j] * shards[rows[j]][0, length)
+   */
+  private static void combine(int[] coef, byte[][] shards, int[] rows, byte[] out, int length)
+  {
+    for (int i = 0; i < length; i++)
+    {
+      out[i] = 0;
+    }
+    for (int j = 0; j < coef.length; j++)
+    {
+      int c = coef[j];
+      if (c == 0)
+      {
+        continue;
+      }
+      byte[] in = shards[rows == null ? j : rows[j]];
+      if (c == 1)
+      {
+        for (int i = 0; i < length; i++)
+        {
+          out[i] ^= in[i];
+        }
+      } else
+      {
+        int base = c << 8;
+        for (int i = 0; i < length; i++)
+        {
+          out[i] ^= MUL[base | (in[i] & 0xff)];
+        }
+      }
+    }
+  }
+
+  /**
+   * compute the parity shards from the data shards, every shard has at least
+   * length bytes
+   *
+   * @param shards data then parity
+   * @param length
+   */
+  void encode(byte[][] shards, int length)
+  {
+    for (int p = 0; p < parityShards; p++)
+    {
+      combine(matrix[dataShards + p], shards, null, shards[dataShards + p], length);
+    }
+  }
+
+  /**
+   * rebuild the missing data shards from any dataShards present shards
+   *
+   * @param shards data then parity, each at least length bytes
+   * @param present
+   * @param length
+   * @return false if too few shards are present
+   */
+  boolean reconstruct(byte[][] shards, boolean[] present, int length)
+  {
+    int[] rows = new int[dataShards];
+    int n = 0;
+    boolean missing = false;
+    for (int i = 0; i < shards.length && n < dataShards; i++)
+    {
+      if (present[i])
+      {
+        rows[n++] = i;
+      } else if (i < dataShards)
+      {
+        missing = true;
+      }
+    }
+    if (n < dataShards)
+    {
+      return false;
+    }
+    if (!missing)
+    {
+      return true;
+    }
+    int[][] sub = new int[dataShards][];
+    for (int i = 0; i < dataShards; i++)
+    {
+      sub[i] = this.matrix[rows[i]];
+    }
+    int[][] inv = invert(sub);
+    for (int d = 0; d < dataShards; d++)
+    {
+      if (!present[d])
+      {
+        combine(inv[d], shards, rows, shards[d], length);
+        present[d] = true;
+      }
+    }
+    return true;
+  }
+}
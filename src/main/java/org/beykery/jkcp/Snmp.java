@@ -0,0 +1,370 @@
+/**
+ * 协议计数
+ */
+package org.beykery.jkcp;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * protocol counters of one kcp (like the snmp of kcp-go), or the sum over the
+ * sessions of a worker or a server. the counters of a kcp are plain fields of
+ * the thread updating it, published with ordered stores once per update
+ * ({@link Kcp#publish()}) and readable from any thread without locking. a
+ * worker only keeps the totals of its closed sessions and adds those of the
+ * live ones on read
+ *
+ * @author beykery
+ */
+public final class Snmp
+{
+
+  private static final int IN_PKTS = 0;
+  private static final int IN_BYTES = 1;
+  private static final int IN_SEGS = 2;
+  private static final int REPEAT_SEGS = 3;
+  private static final int OUT_OF_WINDOW_SEGS = 4;
+  private static final int OUT_PKTS = 5;
+  private static final int OUT_BYTES = 6;
+  private static final int OUT_SEGS = 7;
+  private static final int LOST_SEGS = 8;
+  private static final int FAST_RETRANS_SEGS = 9;
+  private static final int COUNTERS = 10;
+  private static final int SRTT = 10;
+  private static final int RTTVAR = 11;
+  private static final int RTO = 12;
+  private static final int CWND = 13;
+  private static final int SSTHRESH = 14;
+  private static final int RMT_WND = 15;
+  private final AtomicLongArray values = new AtomicLongArray(16);//published
+  private final Set<Snmp> children;//live sessions of a worker, null for a kcp
+  private Snmp parent;//the worker
+  private long inPkts;//datagrams
+  private long inBytes;
+  private long inSegs;
+  private long repeatSegs;//duplicate data segments
+  private long outOfWindowSegs;//data segments beyond the receive window
+  private long outPkts;
+  private long outBytes;
+  private long outSegs;
+  private long lostSegs;//retransmitted by rto
+  private long fastRetransSegs;//retransmitted by fast resend
+  private int srtt;//microsec
+  private int rttvar;//microsec
+  private int rto;//microsec
+  private int cwnd;
+  private int ssthresh;
+  private int rmtWnd;
+
+  /**
+   * counters of a kcp, or a sum
+   */
+  public Snmp()
+  {
+    this(false);
+  }
+
+  /**
+   * snmp
+   *
+   * @param worker adds the live sessions on read
+   */
+  Snmp(boolean worker)
+  {
+    this.children = worker ? Collections.newSetFromMap(new ConcurrentHashMap<Snmp, Boolean>()) : null;
+  }
+
+  /**
+   * the worker of the session, only before the session runs
+   *
+   * @param parent
+   */
+  void setParent(Snmp parent)
+  {
+    this.parent = parent;
+    parent.children.add(this);
+  }
+
+  /**
+   * the session is closed, its published totals move to the worker. called by
+   * the thread updating the kcp
+   */
+  void retire()
+  {
+    Snmp p = this.parent;
+    if (p != null)
+    {
+      this.parent = null;
+      p.inPkts += inPkts;
+      p.inBytes += inBytes;
+      p.inSegs += inSegs;
+      p.repeatSegs += repeatSegs;
+      p.outOfWindowSegs += outOfWindowSegs;
+      p.outPkts += outPkts;
+      p.outBytes += outBytes;
+      p.outSegs += outSegs;
+      p.lostSegs += lostSegs;
+      p.fastRetransSegs += fastRetransSegs;
+      p.publish();
+      p.children.remove(this);
+    }
+  }
+
+  /**
+   * one input
+   *
+   * @param bytes
+   * @param segs
+   * @param repeat
+   * @param outOfWindow
+   */
+  void input(int bytes, int segs, int repeat, int outOfWindow)
+  {
+    inPkts++;
+    inBytes += bytes;
+    inSegs += segs;
+    repeatSegs += repeat;
+    outOfWindowSegs += outOfWindow;
+  }
+
+  /**
+   * one datagram sent
+   *
+   * @param bytes
+   */
+  void output(int bytes)
+  {
+    outPkts++;
+    outBytes += bytes;
+  }
+
+  /**
+   * one flush
+   *
+   * @param segs
+   * @param lost
+   * @param fast
+   */
+  void flush(int segs, int lost, int fast)
+  {
+    outSegs += segs;
+    lostSegs += lost;
+    fastRetransSegs += fast;
+  }
+
+  /**
+   * state of the kcp, not added to the worker
+   *
+   * @param srtt microsec
+   * @param rttvar microsec
+   * @param rto microsec
+   * @param cwnd
+   * @param ssthresh
+   * @param rmtWnd
+   */
+  void state(int srtt, int rttvar, int rto, int cwnd, int ssthresh, int rmtWnd)
+  {
+    this.srtt = srtt;
+    this.rttvar = rttvar;
+    this.rto = rto;
+    this.cwnd = cwnd;
+    this.ssthresh = ssthresh;
+    this.rmtWnd = rmtWnd;
+  }
+
+  /**
+   * make the fields visible to other threads, ordered stores only
+   */
+  void publish()
+  {
+    values.lazySet(IN_PKTS, inPkts);
+    values.lazySet(IN_BYTES, inBytes);
+    values.lazySet(IN_SEGS, inSegs);
+    values.lazySet(REPEAT_SEGS, repeatSegs);
+    values.lazySet(OUT_OF_WINDOW_SEGS, outOfWindowSegs);
+    values.lazySet(OUT_PKTS, outPkts);
+    values.lazySet(OUT_BYTES, outBytes);
+    values.lazySet(OUT_SEGS, outSegs);
+    values.lazySet(LOST_SEGS, lostSegs);
+    values.lazySet(FAST_RETRANS_SEGS, fastRetransSegs);
+    values.lazySet(SRTT, srtt);
+    values.lazySet(RTTVAR, rttvar);
+    values.lazySet(RTO, rto);
+    values.lazySet(CWND, cwnd);
+    values.lazySet(SSTHRESH, ssthresh);
+    values.lazySet(RMT_WND, rmtWnd);
+  }
+
+  /**
+   * published counter i, with the live sessions of a worker
+   */
+  private long get(int i)
+  {
+    long v = values.get(i);
+    if (children != null)
+    {
+      for (Snmp c : children)
+      {
+        v += c.values.get(i);
+      }
+    }
+    return v;
+  }
+
+  /**
+   * add the counters of s to this, for sums read by other threads
+   *
+   * @param s
+   */
+  void add(Snmp s)
+  {
+    long[] sum = new long[COUNTERS];
+    for (int i = 0; i < COUNTERS; i++)
+    {
+      sum[i] = s.values.get(i);
+    }
+    if (s.children != null)
+    {
+      for (Snmp c : s.children)
+      {
+        for (int i = 0; i < COUNTERS; i++)
+        {
+          sum[i] += c.values.get(i);
+        }
+      }
+    }
+    for (int i = 0; i < COUNTERS; i++)
+    {
+      values.lazySet(i, values.get(i) + sum[i]);
+    }
+  }
+
+  public long getInPkts()
+  {
+    return get(IN_PKTS);
+  }
+
+  public long getInBytes()
+  {
+    return get(IN_BYTES);
+  }
+
+  public long getInSegs()
+  {
+    return get(IN_SEGS);
+  }
+
+  public long getRepeatSegs()
+  {
+    return get(REPEAT_SEGS);
+  }
+
+  public long getOutOfWindowSegs()
+  {
+    return get(OUT_OF_WINDOW_SEGS);
+  }
+
+  public long getOutPkts()
+  {
+    return get(OUT_PKTS);
+  }
+
+  public long getOutBytes()
+  {
+    return get(OUT_BYTES);
+  }
+
+  public long getOutSegs()
+  {
+    return get(OUT_SEGS);
+  }
+
+  /**
+   * all retransmissions
+   *
+   * @return
+   */
+  public long getRetransSegs()
+  {
+    return get(LOST_SEGS) + get(FAST_RETRANS_SEGS);
+  }
+
+  public long getLostSegs()
+  {
+    return get(LOST_SEGS);
+  }
+
+  public long getFastRetransSegs()
+  {
+    return get(FAST_RETRANS_SEGS);
+  }
+
+  /**
+   * smoothed rtt in microsec, also without high resolution (then a multiple
+   * of 1000)
+   *
+   * @return
+   */
+  public int getSrttMicros()
+  {
+    return (int) values.get(SRTT);
+  }
+
+  /**
+   * rtt variation in microsec
+   *
+   * @return
+   */
+  public int getRttvarMicros()
+  {
+    return (int) values.get(RTTVAR);
+  }
+
+  /**
+   * retransmission timeout in microsec
+   *
+   * @return
+   */
+  public int getRtoMicros()
+  {
+    return (int) values.get(RTO);
+  }
+
+  /**
+   * window of the congestion controller, Integer.MAX_VALUE if it has none
+   *
+   * @return
+   */
+  public int getCwnd()
+  {
+    return (int) values.get(CWND);
+  }
+
+  /**
+   * Integer.MAX_VALUE if the congestion controller has none
+   *
+   * @return
+   */
+  public int getSsthresh()
+  {
+    return (int) values.get(SSTHRESH);
+  }
+
+  public int getRmtWnd()
+  {
+    return (int) values.get(RMT_WND);
+  }
+
+  @Override
+  public String toString()
+  {
+    Snmp s = new Snmp();
+    s.add(this);
+    AtomicLongArray v = s.values;
+    return "in " + v.get(IN_PKTS) + "/" + v.get(IN_SEGS) + "/" + v.get(IN_BYTES) + " out " + v.get(OUT_PKTS) + "/" + v.get(OUT_SEGS) + "/" + v.get(OUT_BYTES)
+            + " lost " + v.get(LOST_SEGS) + " fast " + v.get(FAST_RETRANS_SEGS) + " repeat " + v.get(REPEAT_SEGS) + " oow " + v.get(OUT_OF_WINDOW_SEGS)
+            + " srtt " + getSrttMicros() + "us rttvar " + getRttvarMicros() + "us rto " + getRtoMicros() + "us cwnd " + getCwnd() + " ssthresh " + getSsthresh() + " rwnd " + getRmtWnd();
+  }
+}
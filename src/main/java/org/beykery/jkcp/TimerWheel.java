@@ -0,0 +1,167 @@
+/**
+ * 时间轮
+ */
+package org.beykery.jkcp;
+
+import java.util.Queue;
+
+/**
+ * hashed timing wheel of kcp sessions, only used by the owning worker. the
+ * entries are linked through the sessions themselves, scheduling and
+ * cancelling are O(1) and allocate nothing
+ *
+ * @author beykery
+ */
+class TimerWheel
+{
+
+  private final KcpOnUdp[] buckets;
+  private final int mask;
+  private final long tick;//ms per bucket
+  private long cursor;//next tick to expire
+  private long earliest = Long.MAX_VALUE;//no session is scheduled before this tick
+  private int size;
+
+  /**
+   * wheel
+   *
+   * @param bucketCount
+   * @param tick
+   * @param now
+   */
+  TimerWheel(int bucketCount, long tick, long now)
+  {
+    int n = 1;
+    while (n < bucketCount)
+    {
+      n <<= 1;
+    }
+    this.buckets = new KcpOnUdp[n];
+    this.mask = n - 1;
+    this.tick = tick;
+    this.cursor = now / tick;
+  }
+
+  /**
+   * wake ku at deadline (ms), replaces any earlier schedule
+   *
+   * @param ku
+   * @param deadline
+   */
+  void schedule(KcpOnUdp ku, long deadline)
+  {
+    cancel(ku);
+    long t = deadline / tick;
+    if (t < cursor)
+    {
+      t = cursor;
+    }
+    if (t < earliest)
+    {
+      earliest = t;
+    }
+    int idx = (int) (t & mask);
+    ku.wheelTick = t;
+    ku.wheelPrev = null;
+    ku.wheelNext = buckets[idx];
+    if (ku.wheelNext != null)
+    {
+      ku.wheelNext.wheelPrev = ku;
+    }
+    buckets[idx] = ku;
+    size++;
+  }
+
+  /**
+   * remove ku from the wheel if scheduled
+   *
+   * @param ku
+   */
+  void cancel(KcpOnUdp ku)
+  {
+    if (ku.wheelTick < 0)
+    {
+      return;
+    }
+    if (ku.wheelPrev != null)
+    {
+      ku.wheelPrev.wheelNext = ku.wheelNext;
+    } else
+    {
+      buckets[(int) (ku.wheelTick & mask)] = ku.wheelNext;
+    }
+    if (ku.wheelNext != null)
+    {
+      ku.wheelNext.wheelPrev = ku.wheelPrev;
+    }
+    ku.wheelPrev = null;
+    ku.wheelNext = null;
+    ku.wheelTick = -1;
+    size--;
+  }
+
+  /**
+   * move every session due at now into out
+   *
+   * @param now
+   * @param out
+   */
+  void expire(long now, Queue<KcpOnUdp> out)
+  {
+    long target = now / tick;
+    for (int i = 0; cursor <= target && i < buckets.length; i++, cursor++)
+    {
+      KcpOnUdp ku = buckets[(int) (cursor & mask)];
+      while (ku != null)
+      {
+        KcpOnUdp next = ku.wheelNext;
+        if (ku.wheelTick <= target)
+        {
+          cancel(ku);
+          out.add(ku);
+        }
+        ku = next;
+      }
+    }
+    if (cursor <= target)//slept longer than a round, every bucket was visited
+    {
+      cursor = target + 1;
+    }
+  }
+
+  /**
+   * time (ms) of the first non empty bucket, a session there may belong to a
+   * later round. Long.MAX_VALUE if nothing is scheduled. the scan starts at
+   * the earliest tick found or scheduled before, so it only walks the empty
+   * buckets once
+   *
+   * @return
+   */
+  long nextExpiry()
+  {
+    if (size == 0)
+    {
+      return Long.MAX_VALUE;
+    }
+    long start = Math.max(cursor, earliest);
+    for (long t = start, end = start + buckets.length; t < end; t++)
+    {
+      if (buckets[(int) (t & mask)] != null)
+      {
+        earliest = t;
+        return t * tick;
+      }
+    }
+    return cursor * tick;
+  }
+
+  /**
+   * scheduled sessions
+   *
+   * @return
+   */
+  int size()
+  {
+    return size;
+  }
+}
@@ -0,0 +1,163 @@
+/**
+ * worker等待策略
+ */
+package org.beykery.jkcp;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * how a KcpThread waits when it has nothing to do. implementations are
+ * stateless and shared by all the workers of a server
+ *
+ * @author beykery
+ */
+public interface WaitStrategy
+{
+
+  /**
+   * called repeatedly while the worker has nothing to do
+   *
+   * @param nanos time left until the next timer, Long.MAX_VALUE if none
+   * @param counter 0 on the first call of an idle period, then the value
+   * returned by the previous call
+   * @return counter for the next call
+   */
+  int idle(long nanos, int counter);
+
+  /**
+   * whether idle may park the thread, producers then have to unpark it
+   *
+   * @return
+   */
+  boolean parks();
+
+  /**
+   * burn the cpu, lowest latency, needs a dedicated core per worker
+   */
+  public static final class BusySpin implements WaitStrategy
+  {
+
+    @Override
+    public int idle(long nanos, int counter)
+    {
+      return counter;
+    }
+
+    @Override
+    public boolean parks()
+    {
+      return false;
+    }
+  }
+
+  /**
+   * spin for a while, then yield the cpu to other threads
+   */
+  public static final class SpinYield implements WaitStrategy
+  {
+
+    private final int spins;
+
+    public SpinYield()
+    {
+      this(100);
+    }
+
+    public SpinYield(int spins)
+    {
+      this.spins = spins;
+    }
+
+    @Override
+    public int idle(long nanos, int counter)
+    {
+      if (counter < spins)
+      {
+        return counter + 1;
+      }
+      Thread.yield();
+      return counter;
+    }
+
+    @Override
+    public boolean parks()
+    {
+      return false;
+    }
+  }
+
+  /**
+   * spin, then yield, then park until the next timer or a signal
+   */
+  public static final class SpinPark implements WaitStrategy
+  {
+
+    private final int spins;
+    private final int yields;
+
+    public SpinPark()
+    {
+      this(100, 100);
+    }
+
+    public SpinPark(int spins, int yields)
+    {
+      this.spins = spins;
+      this.yields = yields;
+    }
+
+    @Override
+    public int idle(long nanos, int counter)
+    {
+      if (counter < spins)
+      {
+        return counter + 1;
+      }
+      if (counter < spins + yields)
+      {
+        Thread.yield();
+        return counter + 1;
+      }
+      if (nanos == Long.MAX_VALUE)
+      {
+        LockSupport.park();
+      } else
+      {
+        LockSupport.parkNanos(nanos);
+      }
+      return counter;
+    }
+
+    @Override
+    public boolean parks()
+    {
+      return true;
+    }
+  }
+
+  /**
+   * park until the next timer or a signal at once, the default
+   */
+  public static final class TimedPark implements WaitStrategy
+  {
+
+    @Override
+    public int idle(long nanos, int counter)
+    {
+      if (nanos == Long.MAX_VALUE)
+      {
+        LockSupport.park();
+      } else
+      {
+        LockSupport.parkNanos(nanos);
+      }
+      return counter;
+    }
+
+    @Override
+    public boolean parks()
+    {
+      return true;
+    }
+  }
+}
@@ -0,0 +1,42 @@
+/**
+ * kcp的执行者
+ */
+package org.beykery.jkcp;
+
+/**
+ * runs the sessions it owns: a {@link KcpThread} or a {@link KcpLoop}
+ *
+ * @author beykery
+ */
+interface Worker
+{
+
+  /**
+   * the session has data to send, may be called from any thread
+   *
+   * @param ku
+   */
+  void wakeup(KcpOnUdp ku);
+
+  /**
+   * sum of the counters of the sessions run by this worker, closed ones
+   * included
+   *
+   * @return
+   */
+  Snmp getSnmp();
+
+  /**
+   * runtime histograms, recorded by this worker
+   *
+   * @return
+   */
+  WorkerMetrics getMetrics();
+
+  /**
+   * the clock of the sessions run by this worker, ticked by it
+   *
+   * @return
+   */
+  Clock getClock();
+}
@@ -0,0 +1,90 @@
+/**
+ * worker的运行统计
+ */
+package org.beykery.jkcp;
+
+/**
+ * runtime histograms of one worker, recorded by the worker only. the getters
+ * return snapshots, see {@link KcpWorkerMXBean}
+ *
+ * @author beykery
+ */
+public final class WorkerMetrics implements KcpWorkerMXBean
+{
+
+  final Histogram tick = new Histogram();
+  final Histogram queue = new Histogram();
+  final Histogram update = new Histogram();
+  final Histogram sessions = new Histogram();
+  final Histogram latency = new Histogram();
+  private final Snmp snmp;
+
+  /**
+   * metrics
+   *
+   * @param snmp counters of the worker
+   */
+  WorkerMetrics(Snmp snmp)
+  {
+    this.snmp = snmp;
+  }
+
+  /**
+   * add the values of m to this, for sums read by other threads
+   *
+   * @param m
+   */
+  void add(WorkerMetrics m)
+  {
+    tick.add(m.tick);
+    queue.add(m.queue);
+    update.add(m.update);
+    sessions.add(m.sessions);
+    latency.add(m.latency);
+    snmp.add(m.snmp);
+  }
+
+  @Override
+  public Histogram getTickNanos()
+  {
+    return tick.snapshot();
+  }
+
+  @Override
+  public Histogram getQueueDepth()
+  {
+    return queue.snapshot();
+  }
+
+  @Override
+  public Histogram getUpdateNanos()
+  {
+    return update.snapshot();
+  }
+
+  @Override
+  public Histogram getSessions()
+  {
+    return sessions.snapshot();
+  }
+
+  @Override
+  public Histogram getLatencyNanos()
+  {
+    return latency.snapshot();
+  }
+
+  @Override
+  public Snmp getSnmp()
+  {
+    Snmp s = new Snmp();
+    s.add(snmp);
+    return s;
+  }
+
+  @Override
+  public String toString()
+  {
+    return "tick " + tick + "\nqueue " + queue + "\nupdate " + update + "\nsessions " + sessions + "\nlatency " + latency + "\n" + snmp;
+  }
+}
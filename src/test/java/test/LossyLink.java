@@ -0,0 +1,308 @@
+/**
+ * 模拟链路
+ */
+package test;
+
+import io.netty.buffer.ByteBuf;
+import java.util.PriorityQueue;
+import java.util.Random;
+import org.beykery.jkcp.Kcp;
+import org.beykery.jkcp.Output;
+
+/**
+ * an impaired one way link between two kcp in memory, for tests and tuning
+ * without a network: the output of the sender goes through a bottleneck of
+ * limited bandwidth and queue, is lost, duplicated, delayed with jitter and
+ * reordered, and is input into the peer when {@link #deliver(long)} reaches
+ * its arrival time. everything random comes from one seeded Random, so a run
+ * with the same seed and the same calls is the same. time is the virtual ms
+ * clock of the caller, not thread safe
+ *
+ * @author beykery
+ */
+public class LossyLink implements Output
+{
+
+  private final Random random;
+  private final PriorityQueue<Packet> flight = new PriorityQueue<>();
+  private Kcp peer;
+  private double loss;
+  private double duplicate;
+  private double reorder;
+  private int reorderDelay;
+  private int delay;
+  private int jitter;
+  private long bandwidth;//bytes/s, 0 unlimited
+  private int queueLimit = 64 * 1024;//bytes waiting for the bottleneck
+  private long now;//ms
+  private long busy;//us, the bottleneck is sending until then
+  private long seq;//keeps the order of packets arriving at the same time
+  private long sent;
+  private long lost;
+  private long overflow;
+  private long duplicated;
+  private long delivered;
+  private long deliveredBytes;
+
+  /**
+   * a perfect link
+   *
+   * @param seed
+   */
+  public LossyLink(long seed)
+  {
+    this.random = new Random(seed);
+  }
+
+  /**
+   * the kcp at the other end
+   *
+   * @param peer
+   */
+  public void connect(Kcp peer)
+  {
+    this.peer = peer;
+  }
+
+  /**
+   * probability that a datagram is lost
+   *
+   * @param loss
+   */
+  public void setLoss(double loss)
+  {
+    this.loss = loss;
+  }
+
+  /**
+   * probability that a datagram arrives twice
+   *
+   * @param duplicate
+   */
+  public void setDuplicate(double duplicate)
+  {
+    this.duplicate = duplicate;
+  }
+
+  /**
+   * probability that a datagram is held back by extra ms, so that later ones
+   * overtake it
+   *
+   * @param reorder
+   * @param extra
+   */
+  public void setReorder(double reorder, int extra)
+  {
+    this.reorder = reorder;
+    this.reorderDelay = extra;
+  }
+
+  /**
+   * one way propagation delay, ms
+   *
+   * @param delay
+   */
+  public void setDelay(int delay)
+  {
+    this.delay = delay;
+  }
+
+  /**
+   * uniform random extra delay in [0, jitter] ms
+   *
+   * @param jitter
+   */
+  public void setJitter(int jitter)
+  {
+    this.jitter = jitter;
+  }
+
+  /**
+   * bottleneck bandwidth in bytes/s, 0 (default) unlimited
+   *
+   * @param bandwidth
+   */
+  public void setBandwidth(long bandwidth)
+  {
+    this.bandwidth = bandwidth;
+  }
+
+  /**
+   * bytes the bottleneck queues before dropping the tail, 64k by default
+   *
+   * @param queueLimit
+   */
+  public void setQueueLimit(int queueLimit)
+  {
+    this.queueLimit = queueLimit;
+  }
+
+  @Override
+  public void out(ByteBuf msg, Kcp kcp, Object user)
+  {
+    sent++;
+    int len = msg.readableBytes();
+    long depart = now * 1000;
+    if (bandwidth > 0)
+    {
+      long start = Math.max(busy, depart);
+      if ((start - depart) * bandwidth / 1000000 + len > queueLimit)
+      {
+        overflow++;
+        msg.release();
+        return;
+      }
+      busy = start + len * 1000000L / bandwidth;
+      depart = busy;
+    }
+    if (random.nextDouble() < loss)
+    {
+      lost++;
+      msg.release();
+      return;
+    }
+    if (random.nextDouble() < duplicate)
+    {
+      duplicated++;
+      this.schedule(msg.copy(), depart);
+    }
+    this.schedule(msg, depart);
+  }
+
+  private void schedule(ByteBuf msg, long depart)
+  {
+    long at = depart / 1000 + delay;
+    if (jitter > 0)
+    {
+      at += random.nextInt(jitter + 1);
+    }
+    if (reorder > 0 && random.nextDouble() < reorder)
+    {
+      at += reorderDelay;
+    }
+    flight.add(new Packet(msg, at, seq++));
+  }
+
+  /**
+   * move the clock to now and input the datagrams arrived by then into the
+   * peer, in arrival order. the peer takes its rtt samples at now, not at its
+   * last update
+   *
+   * @param now ms
+   * @return datagrams input
+   */
+  public int deliver(long now)
+  {
+    this.now = now;
+    int n = 0;
+    Packet p;
+    if (peer != null && (p = flight.peek()) != null && p.at <= now)
+    {
+      peer.setCurrent(now);
+    }
+    while ((p = flight.peek()) != null && p.at <= now)
+    {
+      flight.poll();
+      delivered++;
+      deliveredBytes += p.msg.readableBytes();
+      if (peer != null)
+      {
+        peer.input(p.msg);
+      }
+      p.msg.release();
+      n++;
+    }
+    return n;
+  }
+
+  /**
+   * arrival time of the next datagram, Long.MAX_VALUE if none is on the way
+   *
+   * @return
+   */
+  public long nextArrival()
+  {
+    Packet p = flight.peek();
+    return p == null ? Long.MAX_VALUE : p.at;
+  }
+
+  /**
+   * drop every datagram on the way
+   */
+  public void clear()
+  {
+    Packet p;
+    while ((p = flight.poll()) != null)
+    {
+      p.msg.release();
+    }
+  }
+
+  public long getSent()
+  {
+    return sent;
+  }
+
+  /**
+   * lost at random
+   *
+   * @return
+   */
+  public long getLost()
+  {
+    return lost;
+  }
+
+  /**
+   * dropped by the full bottleneck queue
+   *
+   * @return
+   */
+  public long getOverflow()
+  {
+    return overflow;
+  }
+
+  public long getDuplicated()
+  {
+    return duplicated;
+  }
+
+  public long getDelivered()
+  {
+    return delivered;
+  }
+
+  public long getDeliveredBytes()
+  {
+    return deliveredBytes;
+  }
+
+  /**
+   * a datagram on the way
+   */
+  private static final class Packet implements Comparable<Packet>
+  {
+
+    private final ByteBuf msg;
+    private final long at;
+    private final long seq;
+
+    private Packet(ByteBuf msg, long at, long seq)
+    {
+      this.msg = msg;
+      this.at = at;
+      this.seq = seq;
+    }
+
+    @Override
+    public int compareTo(Packet o)
+    {
+      if (at != o.at)
+      {
+        return at < o.at ? -1 : 1;
+      }
+      return seq < o.seq ? -1 : (seq == o.seq ? 0 : 1);
+    }
+  }
+}
@@ -57,8 +57,9 @@ public class TestClient extends KcpServer
     s.connect(addr);
     s.start();
     
+    KcpOnUdp ku = s.open(addr);
     ByteBuf bb = PooledByteBufAllocator.DEFAULT.buffer(100);
     bb.writeBytes("aabc".getBytes());
-    s.send(bb, addr);
+    ku.send(bb);
   }
 }
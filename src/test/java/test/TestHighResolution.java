@@ -0,0 +1,162 @@
+/**
+ * 高精度rtt测试
+ */
+package test;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import java.util.ArrayDeque;
+import java.util.Random;
+import org.beykery.jkcp.Kcp;
+import org.beykery.jkcp.Output;
+import org.beykery.jkcp.Snmp;
+
+/**
+ * two kcp over a sub ms link in virtual time, once with ms and once with
+ * microsec time units: a sends a message every ms to b, prints the measured
+ * srtt and the retransmissions. args: [one way delay us] [loss] [min rto ms]
+ * [seconds] [seed]
+ *
+ * @author beykery
+ */
+public class TestHighResolution
+{
+
+  private static final int SIZE = 1000;//bytes per message
+  private static final int STEP = 10;//us between two updates
+
+  /**
+   * 测试
+   *
+   * @param args
+   */
+  public static void main(String[] args)
+  {
+    int delay = args.length > 0 ? Integer.parseInt(args[0]) : 150;
+    double loss = args.length > 1 ? Double.parseDouble(args[1]) : 0.01;
+    int minRto = args.length > 2 ? Integer.parseInt(args[2]) : 2;
+    int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 5;
+    long seed = args.length > 4 ? Long.parseLong(args[4]) : 7;
+    for (boolean high : new boolean[]
+    {
+      false, true
+    })
+    {
+      run(high, delay, loss, minRto, seconds, seed);
+    }
+  }
+
+  private static void run(boolean high, int delay, double loss, int minRto, int seconds, long seed)
+  {
+    Pipe ab = new Pipe(delay, loss, seed);
+    Pipe ba = new Pipe(delay, loss, seed + 1);
+    Kcp a = new Kcp(1, ab, "a");
+    Kcp b = new Kcp(1, ba, "b");
+    ab.peer = b;
+    ba.peer = a;
+    for (Kcp k : new Kcp[]
+    {
+      a, b
+    })
+    {
+      k.noDelay(1, 10, 2, 1);
+      k.wndSize(256, 256);
+      k.setHighResolution(high);
+      k.setMinRto(minRto);
+    }
+    long sent = 0;
+    long received = 0;
+    long end = seconds * 1000000L;
+    for (long us = 0; us < end; us += STEP)
+    {
+      ab.deliver(us);
+      ba.deliver(us);
+      if (us % 1000 == 0 && a.waitSnd() < 512)
+      {
+        ByteBuf bb = PooledByteBufAllocator.DEFAULT.buffer(SIZE);
+        bb.writeZero(SIZE);
+        a.send(bb);
+        bb.release();
+        sent++;
+      }
+      int now = (int) (high ? us : us / 1000);
+      a.update(now);
+      b.update(now);
+      int n;
+      while ((n = b.peekSize()) > 0)
+      {
+        ByteBuf bb = PooledByteBufAllocator.DEFAULT.buffer(n);
+        b.receive(bb);
+        bb.release();
+        received++;
+      }
+    }
+    ab.clear();
+    ba.clear();
+    a.release();
+    b.release();
+    Snmp s = a.getSnmp();
+    System.out.printf("%s: rtt %d us loss %.3f min rto %d ms%n", high ? "microsec" : "ms", 2 * delay, loss, minRto);
+    System.out.printf("received %d/%d srtt %d us rttvar %d us rto %d us%n", received, sent, s.getSrttMicros(), s.getRttvarMicros(), s.getRtoMicros());
+    System.out.printf("segments %d retransmitted %d (rto %d, fast %d)%n", s.getOutSegs(), s.getRetransSegs(), s.getLostSegs(), s.getFastRetransSegs());
+  }
+
+  /**
+   * one way link with a fixed delay in microsec and random loss
+   */
+  private static final class Pipe implements Output
+  {
+
+    private final int delay;
+    private final double loss;
+    private final Random random;
+    private final ArrayDeque<ByteBuf> queue = new ArrayDeque<>();
+    private final ArrayDeque<Long> due = new ArrayDeque<>();
+    private long now;
+    private Kcp peer;
+
+    private Pipe(int delay, double loss, long seed)
+    {
+      this.delay = delay;
+      this.loss = loss;
+      this.random = new Random(seed);
+    }
+
+    @Override
+    public void out(ByteBuf msg, Kcp kcp, Object user)
+    {
+      if (random.nextDouble() < loss)
+      {
+        msg.release();
+        return;
+      }
+      queue.add(msg);
+      due.add(now + delay);
+    }
+
+    /**
+     * hand the datagrams due at us to the peer
+     */
+    private void deliver(long us)
+    {
+      now = us;
+      while (!due.isEmpty() && due.peek() <= us)
+      {
+        due.poll();
+        ByteBuf msg = queue.poll();
+        peer.input(msg);
+        msg.release();
+      }
+    }
+
+    private void clear()
+    {
+      ByteBuf msg;
+      while ((msg = queue.poll()) != null)
+      {
+        msg.release();
+      }
+      due.clear();
+    }
+  }
+}
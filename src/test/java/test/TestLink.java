@@ -0,0 +1,131 @@
+/**
+ * 模拟链路测试
+ */
+package test;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import java.util.Arrays;
+import org.beykery.jkcp.Kcp;
+import org.beykery.jkcp.Snmp;
+
+/**
+ * two kcp over a simulated link in virtual time: a sends messages at a fixed
+ * rate to b, prints goodput, retransmission ratio and message latency
+ * percentiles. args: loss [delay ms] [jitter ms] [bandwidth bytes/s] [seconds]
+ * [seed]
+ *
+ * @author beykery
+ */
+public class TestLink
+{
+
+  private static final int SIZE = 512;//bytes per message
+  private static final int RATE = 200;//messages per second
+
+  /**
+   * 测试
+   *
+   * @param args
+   */
+  public static void main(String[] args)
+  {
+    double loss = args.length > 0 ? Double.parseDouble(args[0]) : 0.05;
+    int delay = args.length > 1 ? Integer.parseInt(args[1]) : 30;
+    int jitter = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+    long bandwidth = args.length > 3 ? Long.parseLong(args[3]) : 1000000;
+    int seconds = args.length > 4 ? Integer.parseInt(args[4]) : 30;
+    long seed = args.length > 5 ? Long.parseLong(args[5]) : 1;
+    LossyLink ab = new LossyLink(seed);
+    LossyLink ba = new LossyLink(seed + 1);
+    for (LossyLink l : new LossyLink[]
+    {
+      ab, ba
+    })
+    {
+      l.setLoss(loss);
+      l.setDelay(delay);
+      l.setJitter(jitter);
+      l.setDuplicate(0.01);
+      l.setReorder(0.01, delay);
+      l.setBandwidth(bandwidth);
+    }
+    Kcp a = new Kcp(1, ab, "a");
+    Kcp b = new Kcp(1, ba, "b");
+    ab.connect(b);
+    ba.connect(a);
+    for (Kcp k : new Kcp[]
+    {
+      a, b
+    })
+    {
+      k.noDelay(1, 10, 2, 1);
+      k.wndSize(128, 128);
+    }
+    long end = seconds * 1000L;
+    long[] latencies = new long[(int) (end * RATE / 1000)];
+    int received = 0;
+    long bytes = 0;
+    int messages = 0;
+    long nextA = 0;
+    long nextB = 0;
+    for (long t = 0; t < end; t++)
+    {
+      ab.deliver(t);
+      ba.deliver(t);
+      while (messages < (t + 1) * RATE / 1000)
+      {
+        ByteBuf bb = PooledByteBufAllocator.DEFAULT.buffer(SIZE);
+        bb.writeLong(t);
+        bb.writeZero(SIZE - 8);
+        a.send(bb);
+        bb.release();
+        messages++;
+        nextA = t;
+      }
+      if (t >= nextA)
+      {
+        a.update(t);
+        nextA = a.check(t);
+      }
+      if (t >= nextB)
+      {
+        b.update(t);
+        nextB = b.check(t);
+      }
+      int len;
+      while ((len = b.peekSize()) > 0)
+      {
+        ByteBuf bb = PooledByteBufAllocator.DEFAULT.buffer(len);
+        b.receive(bb);
+        latencies[received++] = t - bb.getLong(0);
+        bytes += len;
+        bb.release();
+      }
+      nextB = Math.min(nextB, ab.nextArrival());
+      nextA = Math.min(nextA, ba.nextArrival());
+    }
+    ab.clear();
+    ba.clear();
+    a.release();
+    b.release();
+    Arrays.sort(latencies, 0, received);
+    Snmp s = a.getSnmp();
+    System.out.printf("loss %.3f delay %d jitter %d bandwidth %d seed %d%n", loss, delay, jitter, bandwidth, seed);
+    System.out.printf("received %d/%d goodput %.1f KB/s%n", received, messages, bytes / 1024.0 / seconds);
+    System.out.printf("segments %d retransmitted %d (%.2f%%, rto %d, fast %d)%n", s.getOutSegs(), s.getRetransSegs(),
+            s.getOutSegs() == 0 ? 0 : 100.0 * s.getRetransSegs() / s.getOutSegs(), s.getLostSegs(), s.getFastRetransSegs());
+    System.out.printf("link lost %d overflow %d duplicated %d%n", ab.getLost(), ab.getOverflow(), ab.getDuplicated());
+    if (received > 0)
+    {
+      System.out.printf("latency ms p50 %d p90 %d p99 %d p999 %d max %d%n", percentile(latencies, received, 0.5),
+              percentile(latencies, received, 0.9), percentile(latencies, received, 0.99),
+              percentile(latencies, received, 0.999), latencies[received - 1]);
+    }
+  }
+
+  private static long percentile(long[] sorted, int n, double p)
+  {
+    return sorted[Math.min(n - 1, (int) Math.ceil(p * n) - 1)];
+  }
+}